@@ -2,17 +2,120 @@ CREATE TABLE Users (
     username varchar(20) PRIMARY KEY,
     hash VARBINARY(20),
     salt VARBINARY(20),
-    balance int
+    balance int,
+    -- Bit d-1 is set while the user has a reservation on day d of the month, a hold that expired
+    -- before the sweeper canceled it may leave it set but does not block booking the day
+    booked_days int NOT NULL DEFAULT 0
 );
 
+-- Reservations are partitioned by flight day so that per-day lookups only touch one partition
+IF NOT EXISTS (SELECT * FROM sys.partition_functions WHERE name = 'ReservationDayPF')
+    CREATE PARTITION FUNCTION ReservationDayPF (int)
+    AS RANGE LEFT FOR VALUES (1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+                              16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30);
+
+IF NOT EXISTS (SELECT * FROM sys.partition_schemes WHERE name = 'ReservationDayPS')
+    CREATE PARTITION SCHEME ReservationDayPS
+    AS PARTITION ReservationDayPF ALL TO ([PRIMARY]);
+
 CREATE TABLE Reservations (
-    id int PRIMARY KEY,
+    id int NOT NULL,
     username VARCHAR(20),
     fid1 int,
     fid2 int,
     canceled int,
     paid int,
-    date int,
+    date int NOT NULL,
     price int,
+    hold_expires datetime2(0) NULL,
+    CONSTRAINT PK_Reservations PRIMARY KEY CLUSTERED (date, id),
     FOREIGN KEY (username) REFERENCES Users(username)
+) ON ReservationDayPS(date);
+
+CREATE INDEX IX_Reservations_username ON Reservations (username, id) ON ReservationDayPS(date);
+CREATE INDEX IX_Reservations_fid1 ON Reservations (fid1) INCLUDE (canceled, hold_expires) ON ReservationDayPS(date);
+CREATE INDEX IX_Reservations_fid2 ON Reservations (fid2) INCLUDE (canceled, hold_expires) ON ReservationDayPS(date);
+-- Unpaid reservations expire at hold_expires, the expiry sweeper seeks this index
+CREATE INDEX IX_Reservations_hold_expires ON Reservations (hold_expires) ON ReservationDayPS(date);
+
+-- Old days are switched out of Reservations into this table, it must mirror Reservations' layout
+CREATE TABLE ReservationsArchive (
+    id int NOT NULL,
+    username VARCHAR(20),
+    fid1 int,
+    fid2 int,
+    canceled int,
+    paid int,
+    date int NOT NULL,
+    price int,
+    hold_expires datetime2(0) NULL,
+    CONSTRAINT PK_ReservationsArchive PRIMARY KEY CLUSTERED (date, id)
+) ON ReservationDayPS(date);
+
+CREATE INDEX IX_ReservationsArchive_username ON ReservationsArchive (username, id) ON ReservationDayPS(date);
+CREATE INDEX IX_ReservationsArchive_fid1 ON ReservationsArchive (fid1) INCLUDE (canceled, hold_expires) ON ReservationDayPS(date);
+CREATE INDEX IX_ReservationsArchive_fid2 ON ReservationsArchive (fid2) INCLUDE (canceled, hold_expires) ON ReservationDayPS(date);
+CREATE INDEX IX_ReservationsArchive_hold_expires ON ReservationsArchive (hold_expires) ON ReservationDayPS(date);
+
+-- Days switched out into ReservationsArchive, which can no longer be booked
+CREATE TABLE ArchivedDays (
+    date int PRIMARY KEY
+);
+
+-- Free seats per flight, split into escrow slots that bookings take from independently, and the
+-- next reservation ID when Users and Reservations are sharded across databases by username. Only
+-- used in the first database, which also holds Flights.
+CREATE TABLE FlightSeats (
+    fid int NOT NULL,
+    slot int NOT NULL,
+    free int NOT NULL,
+    CONSTRAINT PK_FlightSeats PRIMARY KEY (fid, slot)
+);
+
+CREATE TABLE ReservationIds (
+    next_id int NOT NULL
+);
+
+INSERT INTO ReservationIds VALUES (1);
+
+-- Seats taken from FlightSeats for a booking on another database, until the booking is settled.
+-- Claims a failure left behind are settled by Query.reconcileSeats. Only used in the first database.
+CREATE TABLE SeatClaims (
+    id int PRIMARY KEY,
+    username VARCHAR(20) NOT NULL,
+    date int NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    seats int NOT NULL,
+    created datetime2(0) NOT NULL DEFAULT SYSUTCDATETIME()
+);
+
+-- Canceled reservations of other databases whose seats were given back to FlightSeats, kept until
+-- their row in SeatReleases is gone so no seat is given back twice. Only used in the first database.
+CREATE TABLE ReleasedSeats (
+    id int PRIMARY KEY
+);
+
+-- Canceled reservations whose seat still has to be given back to FlightSeats of the first database,
+-- written in the transaction that cancels them
+CREATE TABLE SeatReleases (
+    id int PRIMARY KEY,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL
+);
+
+-- Seat claims given up by Query.reconcileSeats, a booking of a voided claim fails
+CREATE TABLE VoidedClaims (
+    id int PRIMARY KEY
+);
+
+-- Users waiting for seats on an itinerary, booked in id order as seats are freed. Only used in the
+-- first database, so the order holds across shards.
+CREATE TABLE Waitlist (
+    id int IDENTITY(1, 1) PRIMARY KEY,
+    username VARCHAR(20) NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    date int NOT NULL,
+    seats int NOT NULL
 );
@@ -0,0 +1,264 @@
+package flightapp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Admission control for the commands of {@link FlightService}, enabled by the flightapp.admission
+ * system property.
+ *
+ * Commands are grouped into classes, each with its own concurrency limit and a bounded FIFO queue
+ * of commands waiting for a slot. A command that finds the queue full, or that waits longer than
+ * its class allows, is rejected at once instead of queueing for the database.
+ *
+ * Limits adapt to the latency each class observes. When the recent latency of a class rises well
+ * above its long-run baseline, its limit and the limits of every class of lower priority
+ * shrink, so a flood of searches or logins slowing down the database gives way to bookings and
+ * payments. While latency stays low, a class using its whole limit grows it by one slot for every
+ * limit's worth of commands that complete.
+ */
+public class AdmissionController {
+  // Response of a rejected command
+  public static final String REJECTED = "Error: server busy, try again later";
+
+  // Recent latency over this multiple of the baseline counts as overload
+  private static final double TOLERANCE = 2.0;
+  // Weight of the newest latency in the recent latency and in the baseline. Under overload the
+  // baseline drifts ten times slower, so only a lasting change of the workload moves it.
+  private static final double RECENT_SMOOTHING = 0.1;
+  private static final double BASELINE_SMOOTHING = 0.01;
+  // Factor applied to a limit on overload, at most once per shrink interval
+  private static final double BACKOFF = 0.9;
+  private static final long SHRINK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static volatile AdmissionController instance;
+
+  /**
+   * Classes of commands in order of priority
+   */
+  public enum CommandClass {
+    // Revenue-critical writes
+    BOOKING(16, 4, 64, 256, 2000),
+    // Reservation listings
+    READ(8, 2, 32, 128, 1000),
+    SEARCH(8, 1, 64, 64, 500),
+    // PBKDF2 hashing of login and create
+    LOGIN(4, 1, 16, 32, 500);
+
+    final int initialLimit;
+    final int minLimit;
+    final int maxLimit;
+    final int queueSize;
+    final long queueTimeoutMillis;
+
+    CommandClass(int initialLimit, int minLimit, int maxLimit, int queueSize,
+        long queueTimeoutMillis) {
+      this.initialLimit = initialLimit;
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.queueSize = queueSize;
+      this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * Return the class of a command, or null if the command is not admission controlled
+     */
+    public static CommandClass of(String command) {
+      switch (command) {
+        case "book":
+        case "waitlist":
+        case "pay":
+        case "cancel":
+          return BOOKING;
+        case "reservations":
+          return READ;
+        case "search":
+          return SEARCH;
+        case "login":
+        case "create":
+          return LOGIN;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * A slot held by an admitted command, to be released once the command completes
+   */
+  public interface Permit {
+    void release();
+  }
+
+  private static final Permit UNLIMITED = () -> {};
+
+  /**
+   * Limit and queue of one class
+   */
+  private class Limiter {
+    final CommandClass commandClass;
+    final ReentrantLock lock = new ReentrantLock(true);
+    final Condition slotFreed = lock.newCondition();
+    int limit;
+    int inFlight;
+    int waiting;
+    // Commands completed at the limit since it last grew
+    int saturated;
+
+    // Baseline and recent latency, 0 until the first command completes
+    double baselineNanos;
+    double recentNanos;
+    long lastShrink;
+
+    Limiter(CommandClass commandClass) {
+      this.commandClass = commandClass;
+      this.lastShrink = System.nanoTime() - SHRINK_INTERVAL_NANOS;
+      this.limit = Integer.getInteger(
+          "flightapp.admission." + commandClass.name().toLowerCase() + ".limit",
+          commandClass.initialLimit);
+    }
+
+    /**
+     * @return false if the queue is full or the wait timed out
+     */
+    boolean acquire() throws InterruptedException {
+      lock.lock();
+      try {
+        if (inFlight < limit && waiting == 0) {
+          inFlight++;
+          return true;
+        }
+        if (waiting >= commandClass.queueSize) {
+          return false;
+        }
+        waiting++;
+        try {
+          long remaining = TimeUnit.MILLISECONDS.toNanos(commandClass.queueTimeoutMillis);
+          while (inFlight >= limit) {
+            if (remaining <= 0) {
+              return false;
+            }
+            remaining = slotFreed.awaitNanos(remaining);
+          }
+          inFlight++;
+          return true;
+        } finally {
+          waiting--;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void release(long nanos) {
+      boolean overloaded;
+      lock.lock();
+      try {
+        inFlight--;
+        if (baselineNanos == 0) {
+          baselineNanos = nanos;
+          recentNanos = nanos;
+        }
+        recentNanos += RECENT_SMOOTHING * (nanos - recentNanos);
+        overloaded = recentNanos > TOLERANCE * baselineNanos;
+        baselineNanos += (overloaded ? BASELINE_SMOOTHING / 10 : BASELINE_SMOOTHING)
+            * (nanos - baselineNanos);
+        if (!overloaded && inFlight + 1 >= limit && limit < commandClass.maxLimit
+            && ++saturated >= limit) {
+          limit++;
+          saturated = 0;
+        }
+        slotFreed.signal();
+      } finally {
+        lock.unlock();
+      }
+      if (overloaded) {
+        shrinkFrom(commandClass.ordinal());
+      }
+    }
+
+    void shrink(long now) {
+      lock.lock();
+      try {
+        if (now - lastShrink >= SHRINK_INTERVAL_NANOS) {
+          lastShrink = now;
+          limit = Math.max(commandClass.minLimit, (int) (limit * BACKOFF));
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int limit() {
+      lock.lock();
+      try {
+        return limit;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private final Limiter[] limiters;
+
+  AdmissionController() {
+    CommandClass[] classes = CommandClass.values();
+    limiters = new Limiter[classes.length];
+    for (CommandClass c : classes) {
+      limiters[c.ordinal()] = new Limiter(c);
+    }
+  }
+
+  /**
+   * Return the shared controller, or null if admission control is disabled
+   */
+  public static AdmissionController get() {
+    if (instance == null && Boolean.getBoolean("flightapp.admission")) {
+      synchronized (AdmissionController.class) {
+        if (instance == null) {
+          instance = new AdmissionController();
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Wait for a slot for the command
+   *
+   * @return the slot, or null if the command is rejected
+   */
+  public Permit admit(String command) {
+    CommandClass commandClass = CommandClass.of(command);
+    if (commandClass == null) {
+      return UNLIMITED;
+    }
+    Limiter limiter = limiters[commandClass.ordinal()];
+    try {
+      if (!limiter.acquire()) {
+        Metrics.command(command).rejected.increment();
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    long start = System.nanoTime();
+    return () -> limiter.release(System.nanoTime() - start);
+  }
+
+  /**
+   * Return the current concurrency limit of a class
+   */
+  public int limit(CommandClass commandClass) {
+    return limiters[commandClass.ordinal()].limit();
+  }
+
+  // Shrink the limits of the class and of every class with lower priority
+  private void shrinkFrom(int ordinal) {
+    long now = System.nanoTime();
+    for (int i = ordinal; i < limiters.length; i++) {
+      limiters[i].shrink(now);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Runs the transactions of one {@link Query} session without blocking the caller.
+ *
+ * Every call returns immediately with a {@link CompletableFuture}. The blocking JDBC work runs on a
+ * bounded DB executor that is shared by all sessions, and the commands of one session are chained
+ * so they run one at a time in the order they were submitted.
+ */
+public class AsyncQuery {
+  // Default number of threads allowed to block on the database at once
+  private static final int DEFAULT_DB_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+  private static volatile ExecutorService defaultExecutor;
+
+  private final Query q;
+  private final Executor executor;
+
+  // Last command submitted in this session, the next command runs after it
+  private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+  /**
+   * Wrap the session on the shared DB executor.
+   */
+  public AsyncQuery(Query q) {
+    this(q, defaultExecutor());
+  }
+
+  /**
+   * Wrap the session on the given executor.
+   */
+  public AsyncQuery(Query q, Executor executor) {
+    this.q = q;
+    this.executor = executor;
+  }
+
+  /**
+   * Return the shared DB executor. Its size is read from the flightapp.db_threads system property.
+   */
+  public static ExecutorService defaultExecutor() {
+    if (defaultExecutor == null) {
+      synchronized (AsyncQuery.class) {
+        if (defaultExecutor == null) {
+          int threads = Integer.getInteger("flightapp.db_threads", DEFAULT_DB_THREADS);
+          defaultExecutor = newDbExecutor(threads);
+        }
+      }
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * Create a DB executor running at most {@code threads} blocking calls at once. Waiting commands
+   * queue up without holding a thread.
+   */
+  public static ExecutorService newDbExecutor(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "flightapp-db-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Get the wrapped session
+   */
+  public Query getQuery() {
+    return q;
+  }
+
+  /**
+   * Run an action on the session after every previously submitted action has finished. A failed
+   * action does not stop the ones submitted after it.
+   */
+  public synchronized <T> CompletableFuture<T> submit(Function<Query, T> action) {
+    CompletableFuture<T> next = tail.handle((result, error) -> null)
+        .thenApplyAsync(ignored -> action.apply(q), executor);
+    tail = next;
+    return next;
+  }
+
+  /**
+   * @see Query#transaction_login(String, String)
+   */
+  public CompletableFuture<String> transaction_login(String username, String password) {
+    return submit(query -> query.transaction_login(username, password));
+  }
+
+  /**
+   * @see Query#transaction_session()
+   */
+  public CompletableFuture<String> transaction_session() {
+    return submit(query -> query.transaction_session());
+  }
+
+  /**
+   * @see Query#transaction_resume(String)
+   */
+  public CompletableFuture<String> transaction_resume(String token) {
+    return submit(query -> query.transaction_resume(token));
+  }
+
+  /**
+   * @see Query#transaction_createCustomer(String, String, int)
+   */
+  public CompletableFuture<String> transaction_createCustomer(String username, String password,
+      int initAmount) {
+    return submit(query -> query.transaction_createCustomer(username, password, initAmount));
+  }
+
+  /**
+   * @see Query#transaction_search(String, String, boolean, int, int)
+   */
+  public CompletableFuture<String> transaction_search(String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    return submit(query -> query.transaction_search(originCity, destinationCity, directFlight,
+        dayOfMonth, numberOfItineraries));
+  }
+
+  /**
+   * @see Query#transaction_book(int)
+   */
+  public CompletableFuture<String> transaction_book(int itineraryId) {
+    return submit(query -> query.transaction_book(itineraryId));
+  }
+
+  /**
+   * @see Query#transaction_book(int, int)
+   */
+  public CompletableFuture<String> transaction_book(int itineraryId, int seats) {
+    return submit(query -> query.transaction_book(itineraryId, seats));
+  }
+
+  /**
+   * @see Query#transaction_waitlist(int, int)
+   */
+  public CompletableFuture<String> transaction_waitlist(int itineraryId, int seats) {
+    return submit(query -> query.transaction_waitlist(itineraryId, seats));
+  }
+
+  /**
+   * @see Query#transaction_pay(int)
+   */
+  public CompletableFuture<String> transaction_pay(int reservationId) {
+    return submit(query -> query.transaction_pay(reservationId));
+  }
+
+  /**
+   * @see Query#transaction_reservations()
+   */
+  public CompletableFuture<String> transaction_reservations() {
+    return submit(Query::transaction_reservations);
+  }
+
+  /**
+   * @see Query#transaction_cancel(int)
+   */
+  public CompletableFuture<String> transaction_cancel(int reservationId) {
+    return submit(query -> query.transaction_cancel(reservationId));
+  }
+
+  /**
+   * Close the session connection once every submitted command has finished
+   */
+  public CompletableFuture<Void> closeConnection() {
+    return submit(query -> {
+      try {
+        query.closeConnection();
+        return null;
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      }
+    });
+  }
+}
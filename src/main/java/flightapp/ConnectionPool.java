@@ -0,0 +1,102 @@
+package flightapp;
+
+import java.nio.charset.*;
+import java.security.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Physical database connections, each with the statements prepared on it, kept open across
+ * sessions.
+ *
+ * Statements are prepared on first use and kept with their connection, so a session only pays for
+ * the statements it runs, and a session that gets a pooled connection reuses every statement that
+ * earlier sessions prepared on it. Up to flightapp.connection_pool idle connections are kept per
+ * database; the default of 0 closes a connection when its session closes.
+ */
+public class ConnectionPool {
+  static final int MAX_IDLE = Integer.getInteger("flightapp.connection_pool", 0);
+
+  // Idle connections by database, most recently used first
+  private static final Map<String, Deque<Pooled>> idle = new HashMap<>();
+
+  /**
+   * A physical connection and the statements prepared on it, used by one session at a time
+   */
+  public static class Pooled {
+    // Key of the database, see key()
+    final String database;
+    final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    Pooled(String database, Connection conn) {
+      this.database = database;
+      this.conn = conn;
+    }
+
+    /**
+     * Return the statement of the SQL, preparing it if this connection never ran it
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = conn.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+  }
+
+  /**
+   * Take an idle connection to the database, or open a new one
+   */
+  public static Pooled open(String serverURL, String dbName, String adminName, String password)
+      throws SQLException {
+    String database = key(serverURL, dbName, adminName, password);
+    synchronized (idle) {
+      Deque<Pooled> connections = idle.get(database);
+      if (connections != null && !connections.isEmpty()) {
+        return connections.pop();
+      }
+    }
+    return new Pooled(database,
+        Query.openConnectionFromCredential(serverURL, dbName, adminName, password));
+  }
+
+  /**
+   * Return the key of a database in the pool and in the other process-wide maps. It is a hash of
+   * the whole credential, so connections of different logins are kept apart without the password
+   * being held in the maps.
+   */
+  static String key(String serverURL, String dbName, String adminName, String password) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String part : new String[]{serverURL, dbName, adminName, password}) {
+        digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      return Base64.getEncoder().encodeToString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Give back a connection whose session closed. It is closed if the pool of its database is full.
+   */
+  public static void release(Pooled pooled) throws SQLException {
+    if (MAX_IDLE > 0 && !pooled.conn.isClosed()) {
+      // Reset what a session may have changed
+      pooled.conn.setAutoCommit(true);
+      pooled.conn.setReadOnly(false);
+      synchronized (idle) {
+        Deque<Pooled> connections = idle.computeIfAbsent(pooled.database, d -> new ArrayDeque<>());
+        if (connections.size() < MAX_IDLE) {
+          connections.push(pooled);
+          return;
+        }
+      }
+    }
+    pooled.conn.close();
+  }
+}
@@ -2,16 +2,43 @@ package flightapp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
   /**
-   * Execute the specified command on the database query connection
+   * Execute the specified command on the database query connection. If admission control is
+   * enabled, the command may wait for a slot or be rejected, see {@link AdmissionController}.
    */
   public static String execute(Query q, String command) {
     String[] tokens = tokenize(command.trim());
+    AdmissionController.Permit permit = admit(tokens);
+    if (permit == null) {
+      return AdmissionController.REJECTED;
+    }
+    try {
+      return dispatch(q, tokens);
+    } finally {
+      permit.release();
+    }
+  }
+
+  /**
+   * Wait for admission of the command
+   *
+   * @return the slot of the command, or null if it is rejected
+   */
+  private static AdmissionController.Permit admit(String[] tokens) {
+    AdmissionController controller = AdmissionController.get();
+    if (controller == null || tokens.length == 0) {
+      return () -> {};
+    }
+    return controller.admit(tokens[0]);
+  }
+
+  private static String dispatch(Query q, String[] tokens) {
     String response;
 
     // empty input
@@ -30,6 +57,20 @@ public class FlightService {
       }
     }
 
+    // session
+    else if (tokens[0].equals("session")) {
+      response = q.transaction_session();
+    }
+
+    // resume
+    else if (tokens[0].equals("resume")) {
+      if (tokens.length == 2) {
+        response = q.transaction_resume(tokens[1]);
+      } else {
+        response = "Error: Please provide a session token";
+      }
+    }
+
     // create
     else if (tokens[0].equals("create")) {
       if (tokens.length == 4) {
@@ -44,16 +85,18 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length >= 6) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
         try {
-          int day = Integer.valueOf(tokens[4]);
+          SearchOptions options = SearchOptions.parse(maxLegs(tokens[3]), tokens, 6);
+          int day = options.parseDays(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          response = q.transaction_search(originCity, destinationCity, options, day, count);
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
+        } catch (IllegalArgumentException e) {
+          response = "Error: unknown search option " + e.getMessage();
         }
       } else {
         response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
@@ -65,6 +108,21 @@ public class FlightService {
       if (tokens.length == 2) {
         int itinerary_id = Integer.parseInt(tokens[1]);
         response = q.transaction_book(itinerary_id);
+      } else if (tokens.length == 3) {
+        int itinerary_id = Integer.parseInt(tokens[1]);
+        int seats = Integer.parseInt(tokens[2]);
+        response = q.transaction_book(itinerary_id, seats);
+      } else {
+        response = "Error: Please provide an itinerary_id";
+      }
+    }
+
+    // waitlist
+    else if (tokens[0].equals("waitlist")) {
+      if (tokens.length == 2 || tokens.length == 3) {
+        int itinerary_id = Integer.parseInt(tokens[1]);
+        int seats = tokens.length == 3 ? Integer.parseInt(tokens[2]) : 1;
+        response = q.transaction_waitlist(itinerary_id, seats);
       } else {
         response = "Error: Please provide an itinerary_id";
       }
@@ -95,6 +153,11 @@ public class FlightService {
       }
     }
 
+    // metrics
+    else if (tokens[0].equals("metrics")) {
+      response = Metrics.dump();
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -108,6 +171,67 @@ public class FlightService {
     return response;
   }
 
+  /**
+   * Execute the specified command and write its response to {@code out}. Search results are
+   * streamed to {@code out} as they are found instead of being built in memory first.
+   */
+  public static void execute(Query q, String command, Appendable out) throws IOException {
+    String[] tokens = tokenize(command.trim());
+    if (tokens.length >= 6 && tokens[0].equals("search")) {
+      String originCity = tokens[1];
+      String destinationCity = tokens[2];
+      SearchOptions options;
+      int day;
+      int count;
+      try {
+        options = SearchOptions.parse(maxLegs(tokens[3]), tokens, 6);
+        day = options.parseDays(tokens[4]);
+        count = Integer.valueOf(tokens[5]);
+      } catch (NumberFormatException e) {
+        out.append("Failed to parse integer");
+        return;
+      } catch (IllegalArgumentException e) {
+        out.append("Error: unknown search option " + e.getMessage());
+        return;
+      }
+      AdmissionController.Permit permit = admit(tokens);
+      if (permit == null) {
+        out.append(AdmissionController.REJECTED);
+        return;
+      }
+      try {
+        q.transaction_search(originCity, destinationCity, options, day, count, out);
+      } finally {
+        permit.release();
+      }
+    } else {
+      out.append(execute(q, command));
+    }
+  }
+
+  /**
+   * Parse the direct token of a search: "1" searches direct flights only, a larger number allows
+   * itineraries of up to that many flights and anything else allows two flights
+   */
+  static int maxLegs(String token) {
+    if (token.equals("1")) {
+      return 1;
+    }
+    try {
+      return Math.max(2, Integer.parseInt(token));
+    } catch (NumberFormatException e) {
+      return 2;
+    }
+  }
+
+  /**
+   * Execute the specified command on the session without blocking the caller. Commands of the same
+   * session complete in the order they were submitted.
+   */
+  public static CompletableFuture<String> executeAsync(AsyncQuery q, String command) {
+    return q.submit(query -> execute(query, command));
+  }
+
   /**
    * Establishes an application-to-database connection and runs the Flights
    * application REPL
@@ -118,7 +242,13 @@ public class FlightService {
   public static void main(String[] args) throws IOException, SQLException {
     /* prepare the database connection stuff */
     Query q = new Query();
+    HoldSweeper sweeper = HoldSweeper.startIfEnabled();
+    WaitlistPromoter promoter = WaitlistPromoter.start();
     menu(q);
+    if (sweeper != null) {
+      sweeper.close();
+    }
+    promoter.close();
     q.closeConnection();
   }
 
@@ -136,8 +266,11 @@ public class FlightService {
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
+      System.out.println("> session");
+      System.out.println("> resume <session token>");
+      System.out.println("> search <origin city> <destination city> <direct or max legs> <day of the month or first..last> <num itineraries> [time=<min>..<max>] [rank=time|price|best]");
+      System.out.println("> book <itinerary id> [seats]");
+      System.out.println("> waitlist <itinerary id> [seats]");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
       System.out.println("> cancel <reservation id>");
@@ -148,10 +281,10 @@ public class FlightService {
       System.out.print("> ");
       String command = r.readLine();
 
-      // execute the given input command
-      String response = execute(q, command);
-      System.out.print(response);
-      if (response.equals("Goodbye\n")) {
+      // execute the given input command, streaming its response
+      execute(q, command, System.out);
+      String[] tokens = tokenize(command.trim());
+      if (tokens.length > 0 && tokens[0].equals("quit")) {
         break;
       }
     }
@@ -0,0 +1,311 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide, read-only copy of the non-canceled flights, loaded one day at a time.
+ *
+ * Flights never change while the service runs, so every session of a database shares the same
+ * copy; sessions of different databases, e.g. test cases running side by side, keep theirs apart.
+ * A day is kept as a compact graph: cities are numbered and the flights leaving and arriving at
+ * each city are stored as index ranges of arrays, sorted by actual time and then fid. Orderings by
+ * the other ranks of {@link SearchOptions.Rank} are built on first use and shared as well.
+ */
+public class FlightStore {
+  // Days by database key, see ConnectionPool.Pooled, and day of the month
+  private static final ConcurrentMap<String, ConcurrentMap<Integer, Day>> databases =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Return the cached flights of a day of the database, or null if the day was not loaded yet
+   */
+  public static Day get(String database, int dayOfMonth) {
+    ConcurrentMap<Integer, Day> days = databases.get(database);
+    return days == null ? null : days.get(dayOfMonth);
+  }
+
+  /**
+   * Cache the flights of the days firstDay to lastDay of the database read from the given result
+   * set, e.g. from one scan of the range. Days without any row are cached as empty. If another
+   * session loaded a day concurrently, its copy is kept.
+   *
+   * @param rs rows with the columns day_of_month, fid, carrier_id, flight_num, origin_city,
+   *           dest_city, actual_time, capacity and price
+   */
+  public static void load(String database, int firstDay, int lastDay, ResultSet rs)
+      throws SQLException {
+    Map<Integer, DayBuilder> builders = new HashMap<>();
+    for (int d = firstDay; d <= lastDay; d++) {
+      builders.put(d, new DayBuilder());
+    }
+    while (rs.next()) {
+      DayBuilder builder = builders.get(rs.getInt("day_of_month"));
+      if (builder != null) {
+        builder.add(rs);
+      }
+    }
+    ConcurrentMap<Integer, Day> days =
+        databases.computeIfAbsent(database, d -> new ConcurrentHashMap<>());
+    for (Map.Entry<Integer, DayBuilder> e : builders.entrySet()) {
+      days.putIfAbsent(e.getKey(), new Day(e.getKey(), e.getValue()));
+    }
+  }
+
+  /**
+   * Forget all cached days of every database
+   */
+  public static void clear() {
+    databases.clear();
+  }
+
+  /**
+   * Flights of one day. Flight i is described by the i-th element of the public arrays.
+   */
+  public static class Day {
+    public final int dayOfMonth;
+    public final int[] fid;
+    public final String[] carrierId;
+    public final String[] flightNum;
+    public final int[] origin;
+    public final int[] dest;
+    public final int[] time;
+    public final int[] capacity;
+    public final int[] price;
+
+    private final String[] cityNames;
+    // Keyed by cityKey, so cities match case-insensitively like the database compares them
+    private final Map<String, Integer> cityIds = new HashMap<>();
+
+    // Flights leaving city c are at positions outStart[c] .. outStart[c + 1] - 1 of the outbound
+    // list of a ranking, those arriving at c at inStart[c] .. inStart[c + 1] - 1 of its inbound
+    // list
+    private final int[] outStart;
+    private final int[] inStart;
+    private final Ranking byTime;
+    // Flights sorted by fid, for looking up a flight by its fid
+    private final int[] byFid;
+    private final ConcurrentMap<SearchOptions.Rank, Ranking> rankings = new ConcurrentHashMap<>();
+
+    Day(int dayOfMonth, DayBuilder b) {
+      this.dayOfMonth = dayOfMonth;
+      List<String> names = new ArrayList<>();
+      IntList origins = new IntList(), dests = new IntList();
+      for (int i = 0; i < b.fids.size; i++) {
+        origins.add(cityId(names, b.origins.get(i)));
+        dests.add(cityId(names, b.dests.get(i)));
+      }
+
+      fid = b.fids.toArray();
+      carrierId = b.carriers.toArray(new String[0]);
+      flightNum = b.numbers.toArray(new String[0]);
+      origin = origins.toArray();
+      dest = dests.toArray();
+      time = b.times.toArray();
+      capacity = b.capacities.toArray();
+      price = b.prices.toArray();
+      cityNames = names.toArray(new String[0]);
+
+      outStart = new int[cityNames.length + 1];
+      inStart = new int[cityNames.length + 1];
+      for (int i = 0; i < fid.length; i++) {
+        outStart[origin[i] + 1]++;
+        inStart[dest[i] + 1]++;
+      }
+      for (int c = 0; c < cityNames.length; c++) {
+        outStart[c + 1] += outStart[c];
+        inStart[c + 1] += inStart[c];
+      }
+      Integer[] order = new Integer[fid.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingInt(i -> fid[i]));
+      byFid = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        byFid[i] = order[i];
+      }
+      byTime = new Ranking(this, SearchOptions.Rank.TIME);
+      rankings.put(SearchOptions.Rank.TIME, byTime);
+    }
+
+    private int cityId(List<String> names, String city) {
+      Integer id = cityIds.get(cityKey(city));
+      if (id == null) {
+        id = names.size();
+        names.add(city);
+        cityIds.put(cityKey(city), id);
+      }
+      return id;
+    }
+
+    private static String cityKey(String city) {
+      return city.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Return the flights ordered by the given rank, built on first use
+     */
+    public Ranking ranking(SearchOptions.Rank rank) {
+      return rankings.computeIfAbsent(rank, r -> new Ranking(this, r));
+    }
+
+    /**
+     * Return the flight with the given fid, or -1 if it does not fly on this day
+     */
+    public int indexOf(int fid) {
+      int low = 0;
+      int high = byFid.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midFid = this.fid[byFid[mid]];
+        if (midFid < fid) {
+          low = mid + 1;
+        } else if (midFid > fid) {
+          high = mid - 1;
+        } else {
+          return byFid[mid];
+        }
+      }
+      return -1;
+    }
+
+    public int cityCount() {
+      return cityNames.length;
+    }
+
+    /**
+     * Return the number of a city, ignoring case, or -1 if no flight of the day touches it
+     */
+    public int cityId(String city) {
+      Integer id = cityIds.get(cityKey(city));
+      return id == null ? -1 : id;
+    }
+
+    public String cityName(int city) {
+      return cityNames[city];
+    }
+
+    public int outStart(int city) {
+      return outStart[city];
+    }
+
+    public int outEnd(int city) {
+      return outStart[city + 1];
+    }
+
+    /**
+     * Return the flight at position i of the outbound flights by time, see {@link #outStart(int)}
+     */
+    public int outbound(int i) {
+      return byTime.outbound[i];
+    }
+
+    public int inStart(int city) {
+      return inStart[city];
+    }
+
+    public int inEnd(int city) {
+      return inStart[city + 1];
+    }
+
+    /**
+     * Return the flight at position i of the inbound flights by time, see {@link #inStart(int)}
+     */
+    public int inbound(int i) {
+      return byTime.inbound[i];
+    }
+  }
+
+  /**
+   * The flights of a day with their cost under one rank, every city's outbound and inbound flights
+   * sorted by cost and then fid.
+   */
+  public static class Ranking {
+    public final SearchOptions.Rank rank;
+    public final int[] cost;
+    private final int[] outbound;
+    private final int[] inbound;
+
+    Ranking(Day day, SearchOptions.Rank rank) {
+      this.rank = rank;
+      cost = new int[day.fid.length];
+      for (int i = 0; i < cost.length; i++) {
+        cost[i] = rank.cost(day.time[i], day.price[i]);
+      }
+      Integer[] order = new Integer[cost.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> cost[a] != cost[b] ? Integer.compare(cost[a], cost[b])
+          : Integer.compare(day.fid[a], day.fid[b]));
+      outbound = groupByCity(order, day.origin, day.outStart);
+      inbound = groupByCity(order, day.dest, day.inStart);
+    }
+
+    // Stable bucketing of the sorted flights by city
+    private static int[] groupByCity(Integer[] order, int[] city, int[] start) {
+      int[] next = Arrays.copyOf(start, start.length - 1);
+      int[] grouped = new int[order.length];
+      for (int i : order) {
+        grouped[next[city[i]]++] = i;
+      }
+      return grouped;
+    }
+
+    /**
+     * Return the flight at position i of the outbound flights, see {@link Day#outStart(int)}
+     */
+    public int outbound(int i) {
+      return outbound[i];
+    }
+
+    /**
+     * Return the flight at position i of the inbound flights, see {@link Day#inStart(int)}
+     */
+    public int inbound(int i) {
+      return inbound[i];
+    }
+  }
+
+  /**
+   * Rows of one day as read from the database
+   */
+  static class DayBuilder {
+    final IntList fids = new IntList(), times = new IntList();
+    final IntList capacities = new IntList(), prices = new IntList();
+    final List<String> carriers = new ArrayList<>(), numbers = new ArrayList<>();
+    final List<String> origins = new ArrayList<>(), dests = new ArrayList<>();
+
+    void add(ResultSet rs) throws SQLException {
+      fids.add(rs.getInt("fid"));
+      carriers.add(rs.getString("carrier_id"));
+      numbers.add(rs.getString("flight_num"));
+      origins.add(rs.getString("origin_city"));
+      dests.add(rs.getString("dest_city"));
+      times.add(rs.getInt("actual_time"));
+      capacities.add(rs.getInt("capacity"));
+      prices.add(rs.getInt("price"));
+    }
+  }
+
+  /**
+   * Growable int array
+   */
+  private static class IntList {
+    private int[] values = new int[1024];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * Periodically cancels unpaid reservations whose seat hold expired, and with several shards settles
+ * the seat counters that failed bookings and cancels left unsettled.
+ *
+ * Booking and paying already ignore expired holds, the sweeper makes the release durable so the
+ * capacity checks stay cheap. Every run seeks the hold expiry index and cancels in small batches,
+ * each committed on its own, until no expired hold is left, then runs
+ * {@link Query#reconcileSeats}.
+ */
+public class HoldSweeper implements AutoCloseable {
+  private static final int DEFAULT_INTERVAL_SECONDS = 10;
+  private static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final Query q;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler;
+
+  private HoldSweeper(Query q, int batchSize) {
+    this.q = q;
+    this.batchSize = batchSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-hold-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Sweep on a dedicated session every intervalSeconds
+   *
+   * @param q session used only by the sweeper
+   */
+  public static HoldSweeper start(Query q, int intervalSeconds, int batchSize) {
+    HoldSweeper sweeper = new HoldSweeper(q, batchSize);
+    sweeper.scheduler.scheduleWithFixedDelay(sweeper::sweep, intervalSeconds, intervalSeconds,
+        TimeUnit.SECONDS);
+    return sweeper;
+  }
+
+  /**
+   * Start a sweeper if holds expire, i.e. flightapp.hold_ttl_seconds is set, or if users are
+   * sharded. The interval and batch size are read from flightapp.hold_sweep_seconds and
+   * flightapp.hold_sweep_batch.
+   *
+   * @return the sweeper, or null if holds never expire and there is a single shard
+   */
+  public static HoldSweeper startIfEnabled() throws SQLException, IOException {
+    Query q = new Query();
+    if (Query.HOLD_TTL_SECONDS <= 0 && q.getShardConnections().length == 1) {
+      q.closeConnection();
+      return null;
+    }
+    int interval = Integer.getInteger("flightapp.hold_sweep_seconds", DEFAULT_INTERVAL_SECONDS);
+    int batch = Integer.getInteger("flightapp.hold_sweep_batch", DEFAULT_BATCH_SIZE);
+    return start(q, interval, batch);
+  }
+
+  /**
+   * Cancel all expired holds, then settle one batch of seat claims and releases
+   *
+   * @return the number of reservations canceled
+   */
+  public int sweep() {
+    int total = 0;
+    try {
+      int canceled;
+      do {
+        canceled = q.expireHolds(batchSize);
+        total += canceled;
+      } while (canceled == batchSize);
+      q.reconcileSeats(batchSize);
+    } catch (SQLException e) {
+      // Try again on the next run
+      e.printStackTrace();
+    }
+    return total;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    scheduler.shutdownNow();
+    q.closeConnection();
+  }
+}
@@ -0,0 +1,107 @@
+package flightapp;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A fixed-size, log-linear latency histogram in the style of HdrHistogram.
+ *
+ * Values are recorded in microseconds. Every power of two range is split into 16 sub-buckets, so
+ * any recorded value is reported within about 6% of its true value. Recording is lock-free.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+  // Values of 2^41 microseconds (about 25 days) and above are clamped
+  private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS + 1;
+  private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF;
+  private static final long MAX_VALUE = lowerBound(BUCKET_COUNT) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Record one latency given in nanoseconds
+   */
+  public void recordNanos(long nanos) {
+    long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+    counts.incrementAndGet(bucketIndex(micros));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    maxMicros.accumulateAndGet(micros, Math::max);
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public double getMeanMicros() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) totalMicros.get() / count;
+  }
+
+  /**
+   * Return the value in microseconds at or below which the given percentage of recorded values
+   * fall, e.g. 99.0 for the 99th percentile.
+   */
+  public long getPercentileMicros(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(lowerBound(i + 1) - 1, maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  /**
+   * Forget all recorded values
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.0fus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+        getCount(), getMeanMicros(), getPercentileMicros(50), getPercentileMicros(90),
+        getPercentileMicros(99), getPercentileMicros(99.9), getMaxMicros());
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    int shift = msb - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >>> shift);
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+  }
+
+  static long lowerBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+    int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+    return (long) subBucket << shift;
+  }
+}
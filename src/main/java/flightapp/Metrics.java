@@ -0,0 +1,239 @@
+package flightapp;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Process-wide latency histograms and counters for every command and prepared statement.
+ *
+ * The numbers are exposed through JMX as "flightapp:type=Metrics" and as plain text through the
+ * "metrics" command of {@link FlightService}.
+ */
+public class Metrics implements MetricsMBean {
+  private static final String MBEAN_NAME = "flightapp:type=Metrics";
+
+  private static final ConcurrentMap<String, Stats> commands = new ConcurrentSkipListMap<>();
+  private static final ConcurrentMap<String, Stats> statements = new ConcurrentSkipListMap<>();
+  private static final LatencyHistogram commitLatency = new LatencyHistogram();
+  private static final LatencyHistogram rollbackLatency = new LatencyHistogram();
+  private static final Stats EMPTY = new Stats();
+
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(MBEAN_NAME));
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Latency and outcome counters of one command or statement.
+   */
+  public static class Stats {
+    public final LatencyHistogram latency = new LatencyHistogram();
+    public final LongAdder failures = new LongAdder();
+    public final LongAdder deadlockRetries = new LongAdder();
+    public final LongAdder rowsRead = new LongAdder();
+    // Commands turned away by the AdmissionController
+    public final LongAdder rejected = new LongAdder();
+
+    /**
+     * Record one execution
+     *
+     * @param succeeded false if the execution failed or did not commit
+     */
+    public void record(long nanos, boolean succeeded) {
+      latency.recordNanos(nanos);
+      if (!succeeded) {
+        failures.increment();
+      }
+    }
+
+    public void reset() {
+      latency.reset();
+      failures.reset();
+      deadlockRetries.reset();
+      rowsRead.reset();
+      rejected.reset();
+    }
+  }
+
+  /**
+   * Get the counters of a command, e.g. "book"
+   */
+  public static Stats command(String name) {
+    return commands.computeIfAbsent(name, k -> new Stats());
+  }
+
+  /**
+   * Get the counters of a prepared statement
+   */
+  public static Stats statement(String name) {
+    return statements.computeIfAbsent(name, k -> new Stats());
+  }
+
+  // Counters of a command or statement for reading, empty ones for names never recorded so a JMX
+  // client asking for any name does not add it
+  private static Stats find(ConcurrentMap<String, Stats> stats, String name) {
+    Stats found = stats.get(name);
+    return found == null ? EMPTY : found;
+  }
+
+  public static void recordCommit(long nanos) {
+    commitLatency.recordNanos(nanos);
+  }
+
+  public static void recordRollback(long nanos) {
+    rollbackLatency.recordNanos(nanos);
+  }
+
+  /**
+   * Wrap a prepared statement so every execution is timed and every row read is counted under the
+   * given statement name. Executions are also emitted as flight recorder events of the session.
+   */
+  static PreparedStatement instrument(PreparedStatement statement, String name,
+      QueryEvents.Session session) {
+    Stats stats = statement(name);
+    return (PreparedStatement) Proxy.newProxyInstance(Metrics.class.getClassLoader(),
+        new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+          if (!method.getName().startsWith("execute")) {
+            return invoke(statement, method, args);
+          }
+          QueryEvents.StatementEvent event = new QueryEvents.StatementEvent();
+          event.begin();
+          long start = System.nanoTime();
+          boolean succeeded = false;
+          try {
+            Object result = invoke(statement, method, args);
+            succeeded = true;
+            return result instanceof ResultSet ? countRows((ResultSet) result, stats) : result;
+          } finally {
+            stats.record(System.nanoTime() - start, succeeded);
+            event.end();
+            if (event.shouldCommit()) {
+              event.command = session.command;
+              event.user = session.user;
+              event.statement = name;
+              event.succeeded = succeeded;
+              event.commit();
+            }
+          }
+        });
+  }
+
+  private static ResultSet countRows(ResultSet resultSet, Stats stats) {
+    return (ResultSet) Proxy.newProxyInstance(Metrics.class.getClassLoader(),
+        new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+          Object result = invoke(resultSet, method, args);
+          if (Boolean.TRUE.equals(result) && method.getName().equals("next")) {
+            stats.rowsRead.increment();
+          }
+          return result;
+        });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Plain-text dump of all commands, statements and commits
+   */
+  public static String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Commands:\n");
+    for (Map.Entry<String, Stats> e : commands.entrySet()) {
+      Stats stats = e.getValue();
+      sb.append(String.format("  %-14s failed=%d deadlock_retries=%d rejected=%d %s\n", e.getKey(),
+          stats.failures.sum(), stats.deadlockRetries.sum(), stats.rejected.sum(), stats.latency));
+    }
+    sb.append("Statements:\n");
+    for (Map.Entry<String, Stats> e : statements.entrySet()) {
+      Stats stats = e.getValue();
+      sb.append(String.format("  %-34s errors=%d rows=%d %s\n", e.getKey(),
+          stats.failures.sum(), stats.rowsRead.sum(), stats.latency));
+    }
+    sb.append("Commits:   ").append(commitLatency).append("\n");
+    sb.append("Rollbacks: ").append(rollbackLatency).append("\n");
+    return sb.toString();
+  }
+
+  /**
+   * Forget everything recorded so far
+   */
+  public static void resetAll() {
+    commands.values().forEach(Stats::reset);
+    statements.values().forEach(Stats::reset);
+    commitLatency.reset();
+    rollbackLatency.reset();
+  }
+
+  @Override
+  public String getReport() {
+    return dump();
+  }
+
+  @Override
+  public String[] getCommandNames() {
+    return commands.keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public String[] getStatementNames() {
+    return statements.keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public long getCommandCount(String command) {
+    return find(commands, command).latency.getCount();
+  }
+
+  @Override
+  public long getCommandFailures(String command) {
+    return find(commands, command).failures.sum();
+  }
+
+  @Override
+  public long getCommandDeadlockRetries(String command) {
+    return find(commands, command).deadlockRetries.sum();
+  }
+
+  @Override
+  public long getCommandRejections(String command) {
+    return find(commands, command).rejected.sum();
+  }
+
+  @Override
+  public long getCommandPercentileMicros(String command, double percentile) {
+    return find(commands, command).latency.getPercentileMicros(percentile);
+  }
+
+  @Override
+  public long getStatementPercentileMicros(String statement, double percentile) {
+    return find(statements, statement).latency.getPercentileMicros(percentile);
+  }
+
+  @Override
+  public long getStatementRowsRead(String statement) {
+    return find(statements, statement).rowsRead.sum();
+  }
+
+  @Override
+  public long getCommitPercentileMicros(double percentile) {
+    return commitLatency.getPercentileMicros(percentile);
+  }
+
+  @Override
+  public void reset() {
+    resetAll();
+  }
+}
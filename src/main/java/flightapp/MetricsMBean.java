@@ -0,0 +1,43 @@
+package flightapp;
+
+/**
+ * JMX view of the {@link Metrics} collected in this process, registered as
+ * "flightapp:type=Metrics".
+ */
+public interface MetricsMBean {
+  /**
+   * Plain-text dump of every command and statement, the same as the "metrics" command prints
+   */
+  String getReport();
+
+  /**
+   * Names of the commands that were executed at least once
+   */
+  String[] getCommandNames();
+
+  /**
+   * Names of the prepared statements that were executed at least once
+   */
+  String[] getStatementNames();
+
+  long getCommandCount(String command);
+
+  long getCommandFailures(String command);
+
+  long getCommandDeadlockRetries(String command);
+
+  long getCommandRejections(String command);
+
+  long getCommandPercentileMicros(String command, double percentile);
+
+  long getStatementPercentileMicros(String statement, double percentile);
+
+  long getStatementRowsRead(String statement);
+
+  long getCommitPercentileMicros(double percentile);
+
+  /**
+   * Forget everything recorded so far
+   */
+  void reset();
+}
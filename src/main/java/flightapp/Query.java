@@ -3,6 +3,8 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -12,44 +14,86 @@ import javax.crypto.spec.*;
  * Runs queries against a back-end database
  */
 public class Query {
-  // DB Connection
+  // DB Connection of the shard the current transaction runs on
   private Connection conn;
 
+  // Every shard holds the Users and Reservations of the usernames hashed to it. The first shard also
+  // holds Flights and, when there is more than one shard or seat slots are enabled, the seat
+  // counters of every flight.
+  private final Shard[] shards;
+  private Shard shard;
+
+  // Escrow slots the free seats of a flight are split into, see takeSeats. With more than one, seats
+  // are counted in FlightSeats even on a single shard, so bookings of a hot flight do not serialize
+  // on its reservations.
+  static final int SEAT_SLOTS = Integer.getInteger("flightapp.seat_slots", 1);
+
+  // Flights known to have seat slots, by database of the first shard, see seedSeats
+  private static final Map<String, Set<Integer>> seededFlights = new ConcurrentHashMap<>();
+
+  // Read-only copy of the first shard that searches and reservation listings are sent to, or null.
+  // A session reads its own writes by going to the primary for a while after it wrote.
+  private final Shard replica;
+  private long primaryReadsUntil = System.nanoTime();
+  private static final long REPLICA_LAG_NANOS =
+      Long.getLong("flightapp.replica_lag_millis", 5000) * 1000000;
+  private static final AtomicInteger nextReplica = new AtomicInteger();
+
   // Added Fields
   private String username;
-  private List<Itinerary> itineraries;
+
+  // Command being executed and its start time, used for metrics and flight recorder events
+  private final QueryEvents.Session session = new QueryEvents.Session();
+  private String command;
+  private int commandDepth;
+  private long commandStart;
+  // Whether the command succeeded, set on commit and by commands that rightly change nothing
+  private boolean succeeded;
+
+  // Why the last booking failed, for promoteWaitlist: too few seats left, or a database error
+  private boolean bookingSoldOut;
+  private boolean bookingError;
+
+  // Itineraries of the last successful search, dropped when idle, and of the running search
+  private final AtomicReference<SearchState> lastSearch = new AtomicReference<>();
+  private SearchState searching;
 
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH = 128;
 
-  // Canned queries
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
+  // Seconds an unpaid reservation holds its seats, 0 keeps them until canceled
+  static final int HOLD_TTL_SECONDS = Integer.getInteger("flightapp.hold_ttl_seconds", 0);
+
+  // Seconds after which reconcileSeats settles a seat claim its booking left unsettled
+  static final int SEAT_CLAIM_GRACE_SECONDS =
+      Integer.getInteger("flightapp.seat_claim_grace_seconds", 60);
+
+  // Statements on the tables of a shard are prepared once per shard, see Shard
 
   // For check dangling
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
 
   // TODO: YOUR CODE HERE
-  // For clearing tables
+  // For clearing tables. Truncating deallocates whole pages instead of logging every row deleted;
+  // Users is referenced by a foreign key, which rules out TRUNCATE, but is small once its
+  // reservations are gone.
   private static final String CLEAR_USERS_SQL = "DELETE FROM Users";
-  private PreparedStatement clearUsersStatement;
 
-  private static final String CLEAR_RESERVATIONS_SQL = "DELETE FROM Reservations";
-  private PreparedStatement clearReservationsStatement;
+  private static final String CLEAR_RESERVATIONS_SQL = "TRUNCATE TABLE Reservations";
+
+  private static final String CLEAR_RESERVATIONS_ARCHIVE_SQL = "TRUNCATE TABLE ReservationsArchive";
+
+  private static final String CLEAR_ARCHIVED_DAYS_SQL = "TRUNCATE TABLE ArchivedDays";
 
   // For creating new user account
-  private static final String CREATE_USER_SQL = "INSERT INTO Users VALUES (?, ?, ?, ?)";
-  private PreparedStatement createUserStatement;
+  private static final String CREATE_USER_SQL = "INSERT INTO Users VALUES (?, ?, ?, ?, 0)";
 
   // For checking if user account exists in the table
   private static final String CHECK_USER_SQL = "SELECT COUNT(*) as count FROM Users WHERE username = ?";
-  private PreparedStatement checkUserStatement;
 
   // For logging in user
   private static final String LOGIN_USER_SQL = "SELECT * FROM USERS WHERE username = ?";
-  private PreparedStatement loginUserStatement;
 
   // For direct flight
   private static final String DIRECT_FLIGHT_SQL = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, " +
@@ -57,10 +101,42 @@ public class Query {
           "FROM Flights " +
           "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 " +
           "ORDER BY actual_time ASC, fid ASC";
-  private PreparedStatement directFlightStatement;
 
-  // For indirect flight
-  private static final String INDIRECT_FLIGHT_SQL = "SELECT TOP (?) + f1.fid AS f1_fid, " +
+  // For direct and indirect flights in one round trip. Both lookups are cut to the number of
+  // itineraries on the server and run as one plan, the direct rows are returned first. The join of
+  // the indirect flights is skipped when the direct flights already fill the itineraries.
+  private static final String DIRECT_AND_INDIRECT_FLIGHT_SQL = "WITH direct AS (SELECT TOP (?) 1 AS hops, " +
+          "fid AS f1_fid, " +
+          "day_of_month AS f1_day_of_month, " +
+          "carrier_id AS f1_carrier_id, " +
+          "flight_num AS f1_flight_num, " +
+          "origin_city AS f1_origin_city, " +
+          "dest_city AS f1_dest_city, " +
+          "actual_time AS f1_actual_time, " +
+          "capacity AS f1_capacity, " +
+          "price AS f1_price, " +
+
+          "NULL AS f2_fid, " +
+          "NULL AS f2_day_of_month, " +
+          "CAST(NULL AS varchar(34)) AS f2_carrier_id, " +
+          "CAST(NULL AS varchar(34)) AS f2_flight_num, " +
+          "CAST(NULL AS varchar(34)) AS f2_origin_city, " +
+          "CAST(NULL AS varchar(34)) AS f2_dest_city, " +
+          "NULL AS f2_actual_time, " +
+          "NULL AS f2_capacity, " +
+          "NULL AS f2_price, " +
+          "actual_time AS total_time " +
+
+          "FROM Flights " +
+          "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 " +
+          "ORDER BY actual_time ASC, fid ASC) " +
+
+          "SELECT * FROM direct " +
+
+          "UNION ALL " +
+
+          "SELECT * FROM (SELECT TOP (?) 2 AS hops, " +
+          "f1.fid AS f1_fid, " +
           "f1.day_of_month AS f1_day_of_month, " +
           "f1.carrier_id AS f1_carrier_id, " +
           "f1.flight_num AS f1_flight_num, " +
@@ -78,87 +154,280 @@ public class Query {
           "f2.dest_city AS f2_dest_city, " +
           "f2.actual_time AS f2_actual_time, " +
           "f2.capacity AS f2_capacity, " +
-          "f2.price AS f2_price " +
+          "f2.price AS f2_price, " +
+          "f1.actual_time + f2.actual_time AS total_time " +
 
           "FROM Flights AS f1, Flights AS f2 " +
           "WHERE f1.origin_city = ? AND f1.dest_city = f2.origin_city " +
           "AND f2.dest_city = ? AND f1.day_of_month = ? AND f2.day_of_month = ? " +
           "AND f1.canceled = 0 AND f2.canceled = 0 " +
-          "ORDER BY f1.actual_time + f2.actual_time ASC, f1.fid ASC, f2.fid ASC";
-  private PreparedStatement indirectFlightStatement;
-
-  // For capacity of flight 1
-  private static final String F1_CAPACITY_SQL = "SELECT COUNT(*) as count FROM Reservations " +
-          "WHERE fid1 = ? AND canceled = 0";
-  private PreparedStatement f1CapacityStatement;
-
-  // For capacity of flight 1
-  private static final String F2_CAPACITY_SQL = "SELECT COUNT(*) as count FROM Reservations " +
-          "WHERE fid2 = ? AND canceled = 0";
-  private PreparedStatement f2CapacityStatement;
+          "AND ? > (SELECT COUNT(*) FROM direct) " +
+          "ORDER BY f1.actual_time + f2.actual_time ASC, f1.fid ASC, f2.fid ASC) AS indirect " +
 
-  // For checking if the user has a reservation on the same day
-  private static final String USER_SAME_DAY_BOOK_SQL = "SELECT COUNT(*) as count FROM Reservations " +
-          "WHERE username = ? AND date = ? ";
-  private PreparedStatement userSameDayBookStatement;
+          "ORDER BY hops ASC, total_time ASC, f1_fid ASC, f2_fid ASC";
 
-  // For getting the reservation ID
-  private static final String GET_RESERVATION_ID_SQL = "SELECT COUNT(*) AS count from RESERVATIONS";
-  private PreparedStatement getReservationIDStatement;
+  // For loading all flights of a range of days into the shared flight store
+  private static final String DAY_FLIGHTS_SQL = "SELECT day_of_month, fid, carrier_id, flight_num, " +
+          "origin_city, dest_city, actual_time, capacity, price " +
+          "FROM Flights WHERE day_of_month BETWEEN ? AND ? AND canceled = 0";
 
-  // For adding reservation of the booking flight to the table
-  private static final String BOOK_FLIGHT_SQL = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-  private PreparedStatement bookFlightStatement;
+  // For capacity of flight 1, routed to the partition of the flight day. Expired holds no longer
+  // take a seat even before the sweeper cancels them.
+  private static final String F1_CAPACITY_SQL = "SELECT COUNT(*) as count FROM Reservations " +
+          "WHERE date = ? AND fid1 = ? AND canceled = 0 " +
+          "AND (hold_expires IS NULL OR hold_expires > SYSUTCDATETIME())";
 
-  // For getting the price from the reservation
+  // For capacity of flight 2, routed to the partition of the flight day
+  private static final String F2_CAPACITY_SQL = "SELECT COUNT(*) as count FROM Reservations " +
+          "WHERE date = ? AND fid2 = ? AND canceled = 0 " +
+          "AND (hold_expires IS NULL OR hold_expires > SYSUTCDATETIME())";
+
+  // For marking the day as booked in the user's bitmap of booked days, no row is updated if the
+  // user already has a reservation on that day
+  private static final String BOOK_USER_DAY_SQL = "UPDATE Users SET booked_days = booked_days | ? " +
+          "WHERE username = ? AND (booked_days & ?) = 0";
+
+  // Same with holds enabled, a day whose bit is only left set by holds that expired but were not
+  // swept yet counts as free. Only then is the user's reservations on the day probed.
+  private static final String BOOK_USER_DAY_HOLDS_SQL = "UPDATE Users SET booked_days = booked_days | ? " +
+          "WHERE username = ? AND ((booked_days & ?) = 0 OR NOT EXISTS (SELECT * FROM Reservations " +
+          "WHERE username = ? AND date = ? AND canceled = 0 " +
+          "AND (hold_expires IS NULL OR hold_expires > SYSUTCDATETIME())))";
+
+  // For clearing the day from the user's bitmap once no active reservation of the user is left on it,
+  // expired holds do not count
+  private static final String FREE_USER_DAY_SQL = "UPDATE Users SET booked_days = booked_days & ~? " +
+          "WHERE username = ? AND NOT EXISTS (SELECT * FROM Reservations " +
+          "WHERE username = ? AND date = ? AND canceled = 0 " +
+          "AND (hold_expires IS NULL OR hold_expires > SYSUTCDATETIME()))";
+
+  // For clearing an archived day from every user's bitmap
+  private static final String FREE_DAY_SQL = "UPDATE Users SET booked_days = booked_days & ~? " +
+          "WHERE (booked_days & ?) <> 0";
+
+  // For getting the reservation ID, archived reservations keep their IDs
+  private static final String GET_RESERVATION_ID_SQL = "SELECT (SELECT COUNT(*) FROM Reservations) + " +
+          "(SELECT COUNT(*) FROM ReservationsArchive) AS count";
+
+  // For adding reservation of the booking flight to the table, the hold never expires if the TTL
+  // is null
+  private static final String BOOK_FLIGHT_SQL = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?, " +
+          "DATEADD(second, ?, SYSUTCDATETIME()))";
+
+  // For getting the price from the reservation whose hold has not expired
   private static final String GET_RESERVATION_PRICE_SQL = "SELECT price FROM Reservations " +
-          "WHERE username = ? AND id = ? AND paid = 0 AND canceled = 0";
-  private PreparedStatement getReservationPriceStatement;
+          "WHERE username = ? AND id = ? AND paid = 0 AND canceled = 0 " +
+          "AND (hold_expires IS NULL OR hold_expires > SYSUTCDATETIME())";
 
   // For getting the balance of the user
   private static final String GET_USER_BALANCE_SQL = "SELECT balance from Users where username = ?";
-  private PreparedStatement getUserBalanceStatement;
 
   // For updating the paid status of the reservation
-  private static final String UPDATE_PAID_STATUS_SQL = "UPDATE Reservations SET paid = 1 " +
+  private static final String UPDATE_PAID_STATUS_SQL = "UPDATE Reservations SET paid = 1, hold_expires = NULL " +
           "WHERE username = ? AND id = ?";
-  private PreparedStatement updatePaidStatusStatement;
 
   // For updating the balance of the user
   private static final String UPDATE_USER_BALANCE_SQL = "UPDATE Users SET balance = ? WHERE username = ?";
-  private PreparedStatement updateUserBalanceStatement;
 
-  // For getting the reservation of the user
+  // For getting the reservation of the user. A listing covers every day, so there is no date to
+  // eliminate partitions by: it seeks the aligned username index once per partition, and archived
+  // days are already switched out of Reservations
   private static final String GET_USER_RESERVATION_SQL = "SELECT id, fid1, fid2, paid, date, price " +
-          "FROM Reservations WHERE username = ? AND canceled = 0";
-  private PreparedStatement getUserReservationStatement;
+          "FROM Reservations WHERE username = ? AND canceled = 0 ORDER BY id";
 
   // For getting the flight information with the fid
   private static final String GET_FLIGHT_INFO_SQL = "SELECT fid, day_of_month, carrier_id, flight_num," +
           "origin_city, dest_city, actual_time, capacity, price " +
           "FROM Flights WHERE fid = ? ";
-  private PreparedStatement getFlightInfoStatement;
 
   // For getting the reservation to cancel
-  private static final String GET_RESERVATION_CANCEL_SQL = "SELECT price, paid, canceled FROM Reservations " +
+  private static final String GET_RESERVATION_CANCEL_SQL = "SELECT fid1, fid2, date, price, paid, canceled FROM Reservations " +
           "WHERE username = ? AND id = ?";
-  private PreparedStatement getReservationCancelStatement;
 
   // For updating the cancel status of the reservation
-  private static final String UPDATE_CANCEL_STATUS_SQL = "UPDATE Reservations SET canceled = 1 " +
+  private static final String UPDATE_CANCEL_STATUS_SQL = "UPDATE Reservations SET canceled = 1, hold_expires = NULL " +
           "WHERE username = ? AND id = ?";
-  private PreparedStatement updateCancelStatusStatement;
+
+  // For canceling one batch of expired holds, seeks the hold expiry index
+  // The flights are returned to release their seat counters, the user and day to free the day
+  private static final String EXPIRE_HOLDS_SQL = "UPDATE TOP (?) Reservations " +
+          "SET canceled = 1, hold_expires = NULL " +
+          "OUTPUT inserted.id, inserted.fid1, inserted.fid2, inserted.username, inserted.date " +
+          "WHERE hold_expires <= SYSUTCDATETIME() AND paid = 0 AND canceled = 0";
+
+  // For archiving one day of reservations. The partition number is computed by the server so the
+  // day can be inlined safely as an int.
+  private static final String ARCHIVE_DAY_SWITCH_SQL = "ALTER TABLE Reservations " +
+          "SWITCH PARTITION $PARTITION.ReservationDayPF(%1$d) " +
+          "TO ReservationsArchive PARTITION $PARTITION.ReservationDayPF(%1$d)";
+
+  // For checking if the archive partition of the day still holds rows from an earlier archive
+  private static final String ARCHIVE_DAY_COUNT_SQL = "SELECT COUNT(*) AS count FROM ReservationsArchive " +
+          "WHERE date = ?";
+
+  // For archiving one day row by row when the archive partition is not empty
+  private static final String ARCHIVE_DAY_COPY_SQL = "INSERT INTO ReservationsArchive " +
+          "SELECT * FROM Reservations WHERE date = ?";
+
+  private static final String ARCHIVE_DAY_DELETE_SQL = "DELETE FROM Reservations WHERE date = ?";
+
+  // For recording that a day was archived, capacity checks no longer see its reservations
+  private static final String ARCHIVE_DAY_MARK_SQL = "INSERT INTO ArchivedDays SELECT ? " +
+          "WHERE NOT EXISTS (SELECT * FROM ArchivedDays WHERE date = ?)";
+
+  // For refusing bookings on an archived day
+  private static final String ARCHIVED_DAY_SQL = "SELECT COUNT(*) AS count FROM ArchivedDays WHERE date = ?";
+
+  // For resetting the seat counters and reservation ID counter of the first shard. The slots of a
+  // flight are kept and refilled with its capacity, split as seedSeats splits it.
+  private static final String RESET_FLIGHT_SEATS_SQL = "WITH s AS (SELECT fs.slot, fs.free, f.capacity, " +
+          "COUNT(*) OVER (PARTITION BY fs.fid) AS slots " +
+          "FROM FlightSeats AS fs JOIN Flights AS f ON f.fid = fs.fid) " +
+          "UPDATE s SET free = capacity / slots + CASE WHEN slot < capacity % slots THEN 1 ELSE 0 END";
+
+  private static final String CLEAR_RESERVATION_IDS_SQL = "UPDATE ReservationIds SET next_id = 1";
+
+  // For creating a seat slot of a flight that has none yet
+  private static final String SEED_FLIGHT_SEATS_SQL = "INSERT INTO FlightSeats VALUES (?, ?, ?)";
+
+  // For reading and locking every slot of a flight. Slots are locked in slot order, and the update
+  // locks make a second booking rebalancing the flight wait for the first instead of sharing them.
+  private static final String GET_FLIGHT_SEATS_SQL = "SELECT slot, free FROM FlightSeats " +
+          "WITH (UPDLOCK, ROWLOCK) WHERE fid = ? ORDER BY slot";
+
+  // For taking seats from a slot, no row is updated if the slot has fewer free seats. Read committed
+  // locking drops the lock on a slot that had too few seats, so a booking that misses its slot holds
+  // nothing of the flight when it goes on to lock all slots.
+  private static final String RESERVE_SEATS_SQL = "UPDATE FlightSeats WITH (ROWLOCK, READCOMMITTEDLOCK) " +
+          "SET free = free - ? WHERE fid = ? AND slot = ? AND free >= ?";
+
+  // For giving back seats to a slot
+  private static final String RELEASE_SEATS_SQL = "UPDATE FlightSeats WITH (ROWLOCK, READCOMMITTEDLOCK) " +
+          "SET free = free + ? WHERE fid = ? AND slot = ?";
+
+  // For queueing a user for an itinerary, on the first shard so the queue is in order across shards
+  private static final String JOIN_WAITLIST_SQL = "INSERT INTO Waitlist (username, fid1, fid2, date, seats) " +
+          "VALUES (?, ?, ?, ?, ?)";
+
+  // For reading the queue in order, one page at a time
+  private static final String GET_WAITLIST_SQL = "SELECT TOP (?) id, username, fid1, fid2, date, seats " +
+          "FROM Waitlist WHERE id > ? ORDER BY id";
+
+  private static final String LEAVE_WAITLIST_SQL = "DELETE FROM Waitlist WHERE id = ?";
+
+  // Truncating also restarts the waitlist ids
+  private static final String CLEAR_WAITLIST_SQL = "TRUNCATE TABLE Waitlist";
+
+  // For taking a block of reservation IDs unique across all shards
+  private static final String NEXT_RESERVATION_IDS_SQL = "UPDATE ReservationIds " +
+          "SET next_id = next_id + ? OUTPUT deleted.next_id";
+
+  // For claiming the seats taken for a booking on another shard until the booking is settled
+  private static final String CLAIM_SEATS_SQL = "INSERT INTO SeatClaims (id, username, date, fid1, fid2, seats) " +
+          "VALUES (?, ?, ?, ?, ?, ?)";
+
+  // For settling a claim, the seats are returned if no one settled it before
+  private static final String SETTLE_CLAIM_SQL = "DELETE FROM SeatClaims " +
+          "OUTPUT deleted.fid1, deleted.fid2, deleted.seats WHERE id = ?";
+
+  // For the claims that were not settled within the grace period
+  private static final String STALE_CLAIMS_SQL = "SELECT TOP (?) id, username, date FROM SeatClaims " +
+          "WHERE created < DATEADD(second, -?, SYSUTCDATETIME()) ORDER BY id";
+
+  // For checking on the user's shard whether the booking of a claim was written, or was archived since
+  private static final String CLAIM_BOOKED_SQL = "SELECT " +
+          "(SELECT COUNT(*) FROM Reservations WHERE date = ? AND id = ?) + " +
+          "(SELECT COUNT(*) FROM ReservationsArchive WHERE date = ? AND id = ?) AS count";
+
+  // For giving up the claim of a booking that was not written, which then can no longer be
+  private static final String VOID_CLAIM_SQL = "INSERT INTO VoidedClaims SELECT ? " +
+          "WHERE NOT EXISTS (SELECT * FROM VoidedClaims WHERE id = ?)";
+
+  private static final String CLAIM_VOIDED_SQL = "SELECT COUNT(*) AS count FROM VoidedClaims WHERE id = ?";
+
+  // For recording in the cancel transaction that the seat of a reservation has to be given back
+  private static final String ADD_SEAT_RELEASE_SQL = "INSERT INTO SeatReleases VALUES (?, ?, ?)";
+
+  // For locking a pending seat release while it is given back
+  private static final String GET_SEAT_RELEASE_SQL = "SELECT fid1, fid2 FROM SeatReleases WITH (UPDLOCK) " +
+          "WHERE id = ?";
+
+  private static final String REMOVE_SEAT_RELEASE_SQL = "DELETE FROM SeatReleases WHERE id = ?";
+
+  private static final String PENDING_SEAT_RELEASES_SQL = "SELECT TOP (?) id FROM SeatReleases ORDER BY id";
+
+  // For giving back the seat of a reservation at most once, no row is inserted if it was given back
+  private static final String MARK_SEATS_RELEASED_SQL = "INSERT INTO ReleasedSeats SELECT ? " +
+          "WHERE NOT EXISTS (SELECT * FROM ReleasedSeats WHERE id = ?)";
+
+  private static final String UNMARK_SEATS_RELEASED_SQL = "DELETE FROM ReleasedSeats WHERE id = ?";
+
+  // For clearing the seat claims and releases
+  private static final String CLEAR_SEAT_CLAIMS_SQL = "TRUNCATE TABLE SeatClaims";
+
+  private static final String CLEAR_RELEASED_SEATS_SQL = "TRUNCATE TABLE ReleasedSeats";
+
+  private static final String CLEAR_SEAT_RELEASES_SQL = "TRUNCATE TABLE SeatReleases";
+
+  private static final String CLEAR_VOIDED_CLAIMS_SQL = "TRUNCATE TABLE VoidedClaims";
 
   public Query() throws SQLException, IOException {
     this(null, null, null, null);
   }
 
+  /**
+   * Connect to the given database, and to every database listed in the flightapp.shard_databases
+   * property as further shards of Users and Reservations. If flightapp.read_replicas lists read
+   * endpoints of the given database as SERVER or SERVER/DATABASE, reads are also sent to one of
+   * them. The properties are read from dbconn.properties, or from the system properties when a
+   * credential is given.
+   */
   protected Query(String serverURL, String dbName, String adminName, String password)
       throws SQLException, IOException {
-    conn = serverURL == null ? openConnectionFromDbConn()
-        : openConnectionFromCredential(serverURL, dbName, adminName, password);
+    String shardDatabases = System.getProperty("flightapp.shard_databases", "");
+    String replicaDatabases = System.getProperty("flightapp.read_replicas", "");
+    if (serverURL == null) {
+      Properties configProps = loadDbConn();
+      serverURL = configProps.getProperty("flightapp.server_url");
+      dbName = configProps.getProperty("flightapp.database_name");
+      adminName = configProps.getProperty("flightapp.username");
+      password = configProps.getProperty("flightapp.password");
+      shardDatabases = configProps.getProperty("flightapp.shard_databases", shardDatabases);
+      replicaDatabases = configProps.getProperty("flightapp.read_replicas", replicaDatabases);
+    }
+
+    List<String> databases = new ArrayList<>();
+    databases.add(dbName);
+    for (String database : shardDatabases.split(",")) {
+      if (!database.isBlank()) {
+        databases.add(database.trim());
+      }
+    }
+    shards = new Shard[databases.size()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(i, ConnectionPool.open(serverURL, databases.get(i), adminName,
+          password), false);
+    }
+    useShard(shards[0]);
+
+    // Sessions are spread over the replicas of the first database, one connection each
+    List<String> replicas = new ArrayList<>();
+    for (String replica : replicaDatabases.split(",")) {
+      if (!replica.isBlank()) {
+        replicas.add(replica.trim());
+      }
+    }
+    if (replicas.isEmpty()) {
+      replica = null;
+    } else {
+      String[] endpoint = replicas.get(Math.floorMod(nextReplica.getAndIncrement(),
+          replicas.size())).split("/", 2);
+      replica = new Shard(0, ConnectionPool.open(endpoint[0],
+          endpoint.length > 1 ? endpoint[1] : dbName, adminName, password), true);
+      replica.conn.setReadOnly(true);
+    }
 
-    prepareStatements();
+    SearchState.register(lastSearch);
   }
 
   /**
@@ -169,8 +438,7 @@ public class Query {
    */
   public static Connection openConnectionFromDbConn() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = loadDbConn();
     String serverURL = configProps.getProperty("flightapp.server_url");
     String dbName = configProps.getProperty("flightapp.database_name");
     String adminName = configProps.getProperty("flightapp.username");
@@ -178,6 +446,14 @@ public class Query {
     return openConnectionFromCredential(serverURL, dbName, adminName, password);
   }
 
+  private static Properties loadDbConn() throws IOException {
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    }
+    return configProps;
+  }
+
   /**
    * Return a connecion by using the provided parameter.
    *
@@ -205,17 +481,89 @@ public class Query {
   }
 
   /**
-   * Get underlying connection
+   * Return the key of the first shard's database, which holds Flights. State shared by the sessions
+   * of the process, like {@link FlightStore}, is kept apart per database by it.
+   */
+  String database() {
+    return shards[0].pooled.database;
+  }
+
+  /**
+   * Get underlying connection of the first shard, which holds Flights
    */
   public Connection getConnection() {
-    return conn;
+    return shards[0].conn;
+  }
+
+  /**
+   * Get the underlying connections of every shard, the first one holds Flights
+   */
+  public Connection[] getShardConnections() {
+    Connection[] connections = new Connection[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      connections[i] = shards[i].conn;
+    }
+    return connections;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Closes the application-to-database connections, or gives them back to the
+   * {@link ConnectionPool}
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    SearchState.unregister(lastSearch);
+    for (Shard s : shards) {
+      ConnectionPool.release(s.pooled);
+    }
+    if (replica != null) {
+      ConnectionPool.release(replica.pooled);
+    }
+  }
+
+  /**
+   * Prepare every statement of the session up front instead of on first use
+   */
+  void prepareStatements() throws SQLException {
+    for (Shard s : shards) {
+      s.prepareAll();
+    }
+    if (replica != null) {
+      replica.prepareAll();
+    }
+  }
+
+  /**
+   * Return the shard holding the user and its reservations. Names are hashed case-insensitively
+   * like the database compares them, and the shard of a user changes with the number of shards.
+   */
+  private Shard homeShard(String username) {
+    return shards[Math.floorMod(username.toLowerCase(Locale.ROOT).hashCode(), shards.length)];
+  }
+
+  /**
+   * Return the shard to run a read-only transaction of the session on: the replica of the given
+   * shard if it has one and the session did not write recently, else the shard itself
+   */
+  private Shard readShard(Shard primary) {
+    if (replica != null && primary == shards[0] && System.nanoTime() - primaryReadsUntil >= 0) {
+      return replica;
+    }
+    return primary;
+  }
+
+  /**
+   * Send the reads of the session to the primary until the replicas caught up with its write
+   */
+  private void wrote() {
+    primaryReadsUntil = System.nanoTime() + REPLICA_LAG_NANOS;
+  }
+
+  /**
+   * Run the following statements of the transaction on the given shard
+   */
+  private void useShard(Shard s) {
+    shard = s;
+    conn = s.conn;
   }
 
   /**
@@ -226,42 +574,155 @@ public class Query {
   public void clearTables() {
     try {
       // TODO: YOUR CODE HERE
-      clearUsersStatement.clearParameters();
-      clearReservationsStatement.executeUpdate();
-      clearUsersStatement.clearParameters();
-      clearUsersStatement.executeUpdate();
+      for (Shard s : shards) {
+        s.clearReservationsStatement().clearParameters();
+        s.clearReservationsStatement().executeUpdate();
+        s.clearReservationsArchiveStatement().clearParameters();
+        s.clearReservationsArchiveStatement().executeUpdate();
+        s.clearArchivedDaysStatement().executeUpdate();
+        s.clearUsersStatement().clearParameters();
+        s.clearUsersStatement().executeUpdate();
+      }
+      shards[0].clearWaitlistStatement().executeUpdate();
+      if (seatCounters()) {
+        for (Shard s : shards) {
+          s.clearSeatReleasesStatement().executeUpdate();
+          s.clearVoidedClaimsStatement().executeUpdate();
+        }
+        shards[0].clearSeatClaimsStatement().executeUpdate();
+        shards[0].clearReleasedSeatsStatement().executeUpdate();
+        shards[0].resetFlightSeatsStatement().executeUpdate();
+        shards[0].clearReservationIdsStatement().executeUpdate();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  /*
-   * prepare all the SQL statements in this method.
-   */
-  private void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
-    // TODO: YOUR CODE HERE
-    clearUsersStatement = conn.prepareStatement(CLEAR_USERS_SQL);
-    clearReservationsStatement = conn.prepareStatement(CLEAR_RESERVATIONS_SQL);
-    createUserStatement = conn.prepareStatement(CREATE_USER_SQL);
-    checkUserStatement = conn.prepareStatement(CHECK_USER_SQL);
-    loginUserStatement = conn.prepareStatement(LOGIN_USER_SQL);
-    directFlightStatement = conn.prepareStatement(DIRECT_FLIGHT_SQL);
-    indirectFlightStatement = conn.prepareStatement(INDIRECT_FLIGHT_SQL);
-    f1CapacityStatement = conn.prepareStatement(F1_CAPACITY_SQL);
-    f2CapacityStatement = conn.prepareStatement(F2_CAPACITY_SQL);
-    userSameDayBookStatement = conn.prepareStatement(USER_SAME_DAY_BOOK_SQL);
-    getReservationIDStatement = conn.prepareStatement(GET_RESERVATION_ID_SQL);
-    bookFlightStatement = conn.prepareStatement(BOOK_FLIGHT_SQL);
-    getReservationPriceStatement = conn.prepareStatement(GET_RESERVATION_PRICE_SQL);
-    getUserBalanceStatement = conn.prepareStatement(GET_USER_BALANCE_SQL);
-    updatePaidStatusStatement = conn.prepareStatement(UPDATE_PAID_STATUS_SQL);
-    updateUserBalanceStatement = conn.prepareStatement(UPDATE_USER_BALANCE_SQL);
-    getUserReservationStatement = conn.prepareStatement(GET_USER_RESERVATION_SQL);
-    getFlightInfoStatement = conn.prepareStatement(GET_FLIGHT_INFO_SQL);
-    getReservationCancelStatement = conn.prepareStatement(GET_RESERVATION_CANCEL_SQL);
-    updateCancelStatusStatement = conn.prepareStatement(UPDATE_CANCEL_STATUS_SQL);
+  /**
+   * Move all reservations of the given day out of Reservations into ReservationsArchive.
+   *
+   * The day's partition is switched out as a metadata-only operation. If the archive still holds
+   * rows for that day from an earlier archive, the rows are copied and deleted instead. Every shard
+   * archives the day in a transaction of its own, and refuses bookings on the day from then on.
+   *
+   * @param dayOfMonth day of the month to archive
+   */
+  public void archiveDay(int dayOfMonth) {
+    for (Shard s : shards) {
+      useShard(s);
+      archiveDayOnShard(dayOfMonth);
+    }
+  }
+
+  private void archiveDayOnShard(int dayOfMonth) {
+    try {
+      conn.setAutoCommit(false);
+
+      shard.archiveDayCountStatement().clearParameters();
+      shard.archiveDayCountStatement().setInt(1, dayOfMonth);
+      ResultSet countResultSet = shard.archiveDayCountStatement().executeQuery();
+      countResultSet.next();
+      int archived = countResultSet.getInt("count");
+      countResultSet.close();
+
+      if (archived == 0) {
+        try (Statement switchStatement = conn.createStatement()) {
+          switchStatement.executeUpdate(String.format(ARCHIVE_DAY_SWITCH_SQL, dayOfMonth));
+        }
+      } else {
+        shard.archiveDayCopyStatement().clearParameters();
+        shard.archiveDayCopyStatement().setInt(1, dayOfMonth);
+        shard.archiveDayCopyStatement().executeUpdate();
+        shard.archiveDayDeleteStatement().clearParameters();
+        shard.archiveDayDeleteStatement().setInt(1, dayOfMonth);
+        shard.archiveDayDeleteStatement().executeUpdate();
+      }
+
+      shard.archiveDayMarkStatement().clearParameters();
+      shard.archiveDayMarkStatement().setInt(1, dayOfMonth);
+      shard.archiveDayMarkStatement().setInt(2, dayOfMonth);
+      shard.archiveDayMarkStatement().executeUpdate();
+
+      // Archived reservations no longer take the day of their users
+      shard.freeDayStatement().clearParameters();
+      shard.freeDayStatement().setInt(1, dayBit(dayOfMonth));
+      shard.freeDayStatement().setInt(2, dayBit(dayOfMonth));
+      shard.freeDayStatement().executeUpdate();
+      commit();
+    } catch (SQLException e) {
+      try {
+        rollback();
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+      }
+      e.printStackTrace();
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Cancel up to the given number of unpaid reservations whose hold has expired.
+   *
+   * The shards are swept in order until the batch is full. On each shard the holds are canceled,
+   * the days of their users freed and their seats given back in one transaction, so the sweep never
+   * holds many locks at once and a failure leaves nothing half done. Seats of holds on another shard
+   * than the counters are recorded in that transaction and given back once it committed, see
+   * {@link #applySeatRelease}.
+   *
+   * @param batchSize maximum number of reservations to cancel
+   *
+   * @return the number of reservations canceled, less than batchSize once all expired holds are
+   *         released
+   */
+  public int expireHolds(int batchSize) throws SQLException {
+    int canceled = 0;
+    for (int i = 0; i < shards.length && canceled < batchSize; i++) {
+      List<int[]> holds = new ArrayList<>();
+      useShard(shards[i]);
+      conn.setAutoCommit(false);
+      try {
+        List<String> users = new ArrayList<>();
+        shard.expireHoldsStatement().clearParameters();
+        shard.expireHoldsStatement().setInt(1, batchSize - canceled);
+        try (ResultSet rs = shard.expireHoldsStatement().executeQuery()) {
+          while (rs.next()) {
+            holds.add(new int[] { rs.getInt("id"), rs.getInt("fid1"), rs.getInt("fid2"),
+                rs.getInt("date") });
+            users.add(rs.getString("username"));
+          }
+        }
+
+        SortedMap<Integer, Integer> seatsByFlight = new TreeMap<>();
+        for (int j = 0; j < holds.size(); j++) {
+          int[] hold = holds.get(j);
+          freeUserDay(users.get(j), hold[3]);
+          if (seatCounters() && i == 0) {
+            addSeats(seatsByFlight, hold[1], hold[2], 1);
+          } else if (seatCounters()) {
+            addSeatRelease(hold[0], hold[1], hold[2]);
+          }
+        }
+        // The seats go last and in fid order, as in a booking
+        releaseSeats(seatsByFlight);
+        commitStep();
+      } catch (SQLException e) {
+        rollback();
+        throw e;
+      }
+
+      if (seatCounters() && i != 0) {
+        for (int[] hold : holds) {
+          applySeatRelease(shards[i], hold[0]);
+        }
+      }
+      canceled += holds.size();
+    }
+    if (canceled > 0) {
+      WaitlistPromoter.seatsFreed(database());
+    }
+    return canceled;
   }
 
   /**
@@ -274,24 +735,25 @@ public class Query {
    *         errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public String transaction_login(String username, String password) {
+    beginCommand("login");
     try {
       // TODO: YOUR CODE HERE
       // Check if user is already logged in
       if (this.username != null) {
         return "User already logged in\n";
       }
+      useShard(homeShard(username));
       try {
         // Set autocommit to false
         conn.setAutoCommit(false);
         // Get a table with the username parameter
-        loginUserStatement.clearParameters();
-        loginUserStatement.setString(1, username);
-        ResultSet resultSet = loginUserStatement.executeQuery();
+        shard.loginUserStatement().clearParameters();
+        shard.loginUserStatement().setString(1, username);
+        ResultSet resultSet = shard.loginUserStatement().executeQuery();
 
         // Check if user is registered
         if (!resultSet.next()) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Login failed\n";
         }
 
@@ -299,39 +761,23 @@ public class Query {
         byte[] userHash = resultSet.getBytes("hash");
         byte[] userSalt = resultSet.getBytes("salt");
 
-        // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), userSalt, HASH_STRENGTH, KEY_LENGTH);
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-          factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-          hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-          throw new IllegalStateException();
-        }
+        // Generate the hash with the user's salt
+        byte[] hash = hashPassword(password, userSalt);
 
         // Check if two hashes are the same to log in
         if (Arrays.equals(userHash, hash)) {
           this.username = username;
-          conn.commit();
-          conn.setAutoCommit(true);
+          commit();
           return "Logged in as " + username + "\n";
         } else {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Login failed\n";
         }
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)) {
+          if (retryOnDeadLock(e)) {
             return transaction_login(username, password);
           }
         } catch (SQLException ex) {
@@ -340,10 +786,46 @@ public class Query {
         return "Login failed\n";
       }
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
 
+  /**
+   * Issue a signed token of the session, see {@link SessionToken}.
+   *
+   * @return If no user has logged in, then return "Cannot create session, not logged in\n".
+   *         Otherwise return "Session: [token]\n" where the token carries the user and the
+   *         itineraries of the last search.
+   */
+  public String transaction_session() {
+    if (username == null) {
+      return "Cannot create session, not logged in\n";
+    }
+    return "Session: " + SessionToken.issue(username, lastSearch.get()) + "\n";
+  }
+
+  /**
+   * Continue a session from a token issued by this or any other process sharing the session key.
+   *
+   * @return If someone has already logged in, then return "User already logged in\n". If the token
+   *         is invalid or expired, return "Invalid session token\n". Otherwise return "Resumed
+   *         session of [username]\n", after which the itineraries of the token's search can be
+   *         booked.
+   */
+  public String transaction_resume(String token) {
+    if (username != null) {
+      return "User already logged in\n";
+    }
+    SessionToken.Session session = SessionToken.verify(token);
+    if (session == null) {
+      return "Invalid session token\n";
+    }
+    username = session.username;
+    lastSearch.set(session.search);
+    return "Resumed session of " + username + "\n";
+  }
+
   /**
    * Implement the create user function.
    *
@@ -355,15 +837,17 @@ public class Query {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public String transaction_createCustomer(String username, String password, int initAmount) {
+    beginCommand("create");
     try {
       // TODO: YOUR CODE HERE
+      useShard(homeShard(username));
       try {
         // Set autocommit to false
         conn.setAutoCommit(false);
         // Get a table with the username parameter
-        checkUserStatement.clearParameters();
-        checkUserStatement.setString(1, username);
-        ResultSet resultSet = checkUserStatement.executeQuery();
+        shard.checkUserStatement().clearParameters();
+        shard.checkUserStatement().setString(1, username);
+        ResultSet resultSet = shard.checkUserStatement().executeQuery();
 
         // Move the cursor to the next
         resultSet.next();
@@ -372,14 +856,12 @@ public class Query {
         resultSet.close();
         // Check if the username already exists
         if (count == 1) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Failed to create user\n";
         }
         // Check if the initial amount is negative
         if (initAmount < 0) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Failed to create user\n";
         }
       } catch (SQLException throwables) {
@@ -390,34 +872,23 @@ public class Query {
       SecureRandom random = new SecureRandom();
       byte[] salt = new byte[16];
       random.nextBytes(salt);
-      // Specify the hash parameters
-      KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
       // Generate the hash
-      SecretKeyFactory factory = null;
-      byte[] hash = null;
-      try {
-        factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        hash = factory.generateSecret(spec).getEncoded();
-      } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-        throw new IllegalStateException();
-      }
+      byte[] hash = hashPassword(password, salt);
 
       // Set the values of the statement to insert the user into Users table
-      createUserStatement.clearParameters();
-      createUserStatement.setString(1, username);
-      createUserStatement.setBytes(2, hash);
-      createUserStatement.setBytes(3, salt);
-      createUserStatement.setInt(4, initAmount);
-      createUserStatement.executeUpdate();
-      conn.commit();
-      conn.setAutoCommit(true);
+      shard.createUserStatement().clearParameters();
+      shard.createUserStatement().setString(1, username);
+      shard.createUserStatement().setBytes(2, hash);
+      shard.createUserStatement().setBytes(3, salt);
+      shard.createUserStatement().setInt(4, initAmount);
+      shard.createUserStatement().executeUpdate();
+      commit();
       return "Created user " + username + "\n";
     } catch (SQLException e) {
       try {
-        conn.rollback();
-        conn.setAutoCommit(true);
+        rollback();
         // If the error is deadlock, then call this method recursively
-        if (isDeadLock(e)) {
+        if (retryOnDeadLock(e)) {
           return transaction_createCustomer(username, password, initAmount);
         }
       } catch (SQLException ex) {
@@ -425,6 +896,7 @@ public class Query {
       }
       return "Failed to create user\n";
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
@@ -461,128 +933,205 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight,
       int dayOfMonth, int numberOfItineraries) {
+    return transaction_search(originCity, destinationCity, directFlight ? 1 : 2, dayOfMonth,
+        numberOfItineraries);
+  }
+
+  /**
+   * Search for itineraries of up to {@code maxLegs} flights.
+   *
+   * With one or two legs this is the same as
+   * {@link #transaction_search(String, String, boolean, int, int)}. With more legs the direct
+   * flights still come first, the remaining itineraries are the fastest routes of 2 to maxLegs
+   * flights that do not visit a city twice, found by {@link RouteSearch} over the shared
+   * {@link FlightStore}. Itineraries of more than two flights are shown but cannot be booked.
+   *
+   * @param maxLegs maximum number of flights per itinerary, at least 1
+   */
+  public String transaction_search(String originCity, String destinationCity, int maxLegs,
+      int dayOfMonth, int numberOfItineraries) {
+    return transaction_search(originCity, destinationCity, new SearchOptions(maxLegs), dayOfMonth,
+        numberOfItineraries);
+  }
+
+  /**
+   * Search for itineraries satisfying the given options.
+   *
+   * Without a time window and ranked by time this is the same as
+   * {@link #transaction_search(String, String, int, int, int)}. Otherwise the search runs over the
+   * shared {@link FlightStore}: two-leg itineraries are found by {@link TwoLegSearch}, longer ones
+   * by {@link RouteSearch}, and direct flights outside the window are left out. Itineraries are
+   * ordered by their total cost under {@link SearchOptions#rank}. With a day range up to
+   * {@link SearchOptions#lastDay}, the best itineraries over all days of the range are returned.
+   */
+  public String transaction_search(String originCity, String destinationCity,
+      SearchOptions options, int dayOfMonth, int numberOfItineraries) {
+    StringBuilder sb = new StringBuilder();
     try {
-      // WARNING the below code is unsafe and only handles searches for direct flights
-      // You can use the below code as a starting reference point or you can get rid
-      // of it all and replace it with your own implementation.
-      //
-      // TODO: YOUR CODE HERE
-      StringBuffer sb = new StringBuffer();
-      // List to store all the itineraries that matche to the user's selection
-      itineraries = new ArrayList<>();
+      String error = searchItineraries(originCity, destinationCity, options, dayOfMonth,
+          numberOfItineraries, sb);
+      return error == null ? sb.toString() : error;
+    } catch (IOException e) {
+      // StringBuilder never throws
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Streaming variant of the search function.
+   *
+   * Writes each itinerary to {@code out} as soon as its position in the result is known instead of
+   * building the whole result first. The output is the same as the one returned by
+   * {@link #transaction_search(String, String, boolean, int, int)}, except that an error occurring
+   * after some itineraries were written is appended after them.
+   *
+   * @param out sink receiving the search result
+   *
+   * @throws IOException if writing to {@code out} fails
+   */
+  public void transaction_search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, Appendable out) throws IOException {
+    transaction_search(originCity, destinationCity, directFlight ? 1 : 2, dayOfMonth,
+        numberOfItineraries, out);
+  }
+
+  /**
+   * Streaming variant of {@link #transaction_search(String, String, int, int, int)}
+   *
+   * @throws IOException if writing to {@code out} fails
+   */
+  public void transaction_search(String originCity, String destinationCity, int maxLegs,
+      int dayOfMonth, int numberOfItineraries, Appendable out) throws IOException {
+    transaction_search(originCity, destinationCity, new SearchOptions(maxLegs), dayOfMonth,
+        numberOfItineraries, out);
+  }
+
+  /**
+   * Streaming variant of {@link #transaction_search(String, String, SearchOptions, int, int)}
+   *
+   * @throws IOException if writing to {@code out} fails
+   */
+  public void transaction_search(String originCity, String destinationCity,
+      SearchOptions options, int dayOfMonth, int numberOfItineraries, Appendable out)
+      throws IOException {
+    String error = searchItineraries(originCity, destinationCity, options, dayOfMonth,
+        numberOfItineraries, out);
+    if (error != null) {
+      out.append(error);
+    }
+  }
+
+  /**
+   * Run the search and write the itineraries to {@code out}.
+   *
+   * Only the (fid1, fid2) pair of every written itinerary is kept in the session for a later book.
+   *
+   * @return null if the search succeeded, otherwise the message to show instead of the result
+   */
+  private String searchItineraries(String originCity, String destinationCity,
+      SearchOptions options, int dayOfMonth, int numberOfItineraries, Appendable out)
+      throws IOException {
+    beginCommand("search");
+    try {
+      // Forget the previous search
+      lastSearch.set(null);
+      searching = new SearchState();
+      useShard(readShard(shards[0]));
 
       try {
         // Set autocommit to false
         conn.setAutoCommit(false);
-        // Set the values of the statement to get the flight info
-        directFlightStatement.clearParameters();
-        directFlightStatement.setInt(1, numberOfItineraries);
-        directFlightStatement.setString(2, originCity);
-        directFlightStatement.setString(3, destinationCity);
-        directFlightStatement.setInt(4, dayOfMonth);
-        // Get a table with the flight information
-        ResultSet directResultSet = directFlightStatement.executeQuery();
-        int count = 0;
 
-        // Iterate the query result
-        while (directResultSet.next()) {
-          // Get all the information from the query result to create flights and itineraries
-          int result_fid = directResultSet.getInt("fid");
-          int result_dayOfMonth = directResultSet.getInt("day_of_month");
-          String result_carrierId = directResultSet.getString("carrier_id");
-          String result_flightNum = directResultSet.getString("flight_num");
-          String result_originCity = directResultSet.getString("origin_city");
-          String result_destCity = directResultSet.getString("dest_city");
-          int result_time = directResultSet.getInt("actual_time");
-          int result_capacity = directResultSet.getInt("capacity");
-          int result_price = directResultSet.getInt("price");
-
-          // Create a new Flight with the query result
-          Flight flight = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum,
-                  result_originCity, result_destCity, result_time, result_capacity, result_price);
-          // Add a new itinerary with the flight to itinerary list
-          itineraries.add(new Itinerary(flight));
-          count++;
-        }
-        directResultSet.close();
-        // Check if we couldn't find any flights
-        if (directFlight && count == 0) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "No flights match your selection\n";
-        }
+        if (options.needsFlightStore()) {
+          // Search the day's flights in memory, SQL can neither express routes of any length nor
+          // range scan the connecting flights of a hub, nor rank without another sort of the join
+          if (!searchRoutes(originCity, destinationCity, options, dayOfMonth, numberOfItineraries,
+              out)) {
+            rollback();
+            // Finding no flights is an answer, not a failure
+            succeeded = true;
+            return "No flights match your selection\n";
+          }
+        } else if (options.maxLegs <= 1) {
+          // Set the values of the statement to get the flight info
+          shard.directFlightStatement().clearParameters();
+          shard.directFlightStatement().setInt(1, numberOfItineraries);
+          shard.directFlightStatement().setString(2, originCity);
+          shard.directFlightStatement().setString(3, destinationCity);
+          shard.directFlightStatement().setInt(4, dayOfMonth);
+          // Get a table with the flight information, already sorted
+          ResultSet directResultSet = shard.directFlightStatement().executeQuery();
+
+          // Write an itinerary for each flight as it is read
+          while (directResultSet.next()) {
+            writeItinerary(new Itinerary(flightFromResultSet(directResultSet, "")), out);
+          }
+          directResultSet.close();
+
+          // Check if we couldn't find any flights
+          if (searching.count() == 0) {
+            rollback();
+            // Finding no flights is an answer, not a failure
+            succeeded = true;
+            return "No flights match your selection\n";
+          }
+        } else {
+          // Look up the direct and the indirect flights at once. Both halves are cut to the number
+          // of itineraries, the indirect ones then fill whatever the direct ones leave over.
+          shard.directAndIndirectFlightStatement().clearParameters();
+          shard.directAndIndirectFlightStatement().setInt(1, numberOfItineraries);
+          shard.directAndIndirectFlightStatement().setString(2, originCity);
+          shard.directAndIndirectFlightStatement().setString(3, destinationCity);
+          shard.directAndIndirectFlightStatement().setInt(4, dayOfMonth);
+          shard.directAndIndirectFlightStatement().setInt(5, numberOfItineraries);
+          shard.directAndIndirectFlightStatement().setString(6, originCity);
+          shard.directAndIndirectFlightStatement().setString(7, destinationCity);
+          shard.directAndIndirectFlightStatement().setInt(8, dayOfMonth);
+          shard.directAndIndirectFlightStatement().setInt(9, dayOfMonth);
+          shard.directAndIndirectFlightStatement().setInt(10, numberOfItineraries);
+          // Get a table with the flight information, sorted direct flights come first
+          ResultSet resultSet = shard.directAndIndirectFlightStatement().executeQuery();
+
+          // Read the direct itineraries, there are at most numberOfItineraries of them
+          List<Itinerary> direct = new ArrayList<>();
+          boolean hasRow = resultSet.next();
+          while (hasRow && resultSet.getInt("hops") == 1) {
+            direct.add(new Itinerary(flightFromResultSet(resultSet, "f1_")));
+            hasRow = resultSet.next();
+          }
 
-        if (!directFlight) {
-          // Get (number of itineraries user input) - (number of itineraries counted)
-          int indirectItineraries = numberOfItineraries - count;
-
-          if (indirectItineraries > 0) {
-            // Set the values of the statement to get the flight info
-            indirectFlightStatement.clearParameters();
-            indirectFlightStatement.setInt(1, indirectItineraries);
-            indirectFlightStatement.setString(2, originCity);
-            indirectFlightStatement.setString(3, destinationCity);
-            indirectFlightStatement.setInt(4, dayOfMonth);
-            indirectFlightStatement.setInt(5, dayOfMonth);
-            // Get a table with the flight information
-            ResultSet indirectResultSet = indirectFlightStatement.executeQuery();
-
-            // Iterate the query result
-            while (indirectResultSet.next()) {
-              // Get all the information from the query result to create flights and itineraries
-              // f1 indirect
-              int f1_result_fid = indirectResultSet.getInt("f1_fid");
-              int f1_result_dayOfMonth = indirectResultSet.getInt("f1_day_of_month");
-              String f1_result_carrierId = indirectResultSet.getString("f1_carrier_id");
-              String f1_result_flightNum = indirectResultSet.getString("f1_flight_num");
-              String f1_result_originCity = indirectResultSet.getString("f1_origin_city");
-              String f1_result_destCity = indirectResultSet.getString("f1_dest_city");
-              int f1_result_time = indirectResultSet.getInt("f1_actual_time");
-              int f1_result_capacity = indirectResultSet.getInt("f1_capacity");
-              int f1_result_price = indirectResultSet.getInt("f1_price");
-              // f2 indirect
-              int f2_result_fid = indirectResultSet.getInt("f2_fid");
-              int f2_result_dayOfMonth = indirectResultSet.getInt("f2_day_of_month");
-              String f2_result_carrierId = indirectResultSet.getString("f2_carrier_id");
-              String f2_result_flightNum = indirectResultSet.getString("f2_flight_num");
-              String f2_result_originCity = indirectResultSet.getString("f2_origin_city");
-              String f2_result_destCity = indirectResultSet.getString("f2_dest_city");
-              int f2_result_time = indirectResultSet.getInt("f2_actual_time");
-              int f2_result_capacity = indirectResultSet.getInt("f2_capacity");
-              int f2_result_price = indirectResultSet.getInt("f2_price");
-              // Create a new Flight f1 with the query result
-              Flight f1 = new Flight(f1_result_fid, f1_result_dayOfMonth, f1_result_carrierId, f1_result_flightNum,
-                      f1_result_originCity, f1_result_destCity, f1_result_time, f1_result_capacity, f1_result_price);
-              // Create a new Flight f2 with the query result
-              Flight f2 = new Flight(f2_result_fid, f2_result_dayOfMonth, f2_result_carrierId, f2_result_flightNum,
-                      f2_result_originCity, f2_result_destCity, f2_result_time, f2_result_capacity, f2_result_price);
-              // Add a new itinerary with two flights (f1, f2) to itinerary list
-              itineraries.add(new Itinerary(f1, f2));
+          // Merge the sorted indirect itineraries into the direct ones as they are read, keeping
+          // direct ones first on ties
+          int indirectLeft = numberOfItineraries - direct.size();
+          int nextDirect = 0;
+          while (hasRow && indirectLeft > 0) {
+            Itinerary indirect = new Itinerary(flightFromResultSet(resultSet, "f1_"),
+                flightFromResultSet(resultSet, "f2_"));
+            while (nextDirect < direct.size() && direct.get(nextDirect).compareTo(indirect) <= 0) {
+              writeItinerary(direct.get(nextDirect++), out);
             }
-            indirectResultSet.close();
+            writeItinerary(indirect, out);
+            indirectLeft--;
+            hasRow = resultSet.next();
           }
+          while (nextDirect < direct.size()) {
+            writeItinerary(direct.get(nextDirect++), out);
+          }
+          resultSet.close();
         }
 
-        // Sort by total time and fid value (compareTo method)
-        Collections.sort(itineraries);
-        // Append the itineraries that we found to sb
-        for (int i = 0; i < itineraries.size(); i++) {
-          Itinerary itinerary = itineraries.get(i);
-          sb.append("Itinerary " + i + ": " + itinerary.count + " flight(s), " + itinerary.totalTime + " minutes\n");
-          sb.append(itinerary.toString());
-        }
-        conn.commit();
-        conn.setAutoCommit(true);
-        return sb.toString();
+        commit();
+        searching.trim();
+        lastSearch.set(searching);
+        return null;
 
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)){
-            return transaction_search(originCity, destinationCity, directFlight,
-                    dayOfMonth, numberOfItineraries);
+          rollback();
+          // If the error is deadlock and nothing was written yet, then call this method recursively
+          if (searching.count() == 0 && retryOnDeadLock(e)) {
+            return searchItineraries(originCity, destinationCity, options,
+                    dayOfMonth, numberOfItineraries, out);
           }
         } catch (SQLException ex) {
           ex.printStackTrace();
@@ -591,134 +1140,606 @@ public class Query {
         return "Failed to search\n";
       }
     } finally {
+      // Only the published state may stay reachable, so idle eviction frees it
+      searching = null;
+      endCommand();
       checkDanglingTransaction();
     }
   }
 
   /**
-   * Implements the book itinerary function.
+   * Write the best itineraries from dayOfMonth to {@link SearchOptions#lastDay}. Every day is
+   * searched like a single-day search and the per-day results are merged by total cost, earlier
+   * days first on ties.
    *
-   * @param itineraryId ID of the itinerary to book. This must be one that is returned by search in
-   *                    the current session.
-   *
-   * @return If the user is not logged in, then return "Cannot book reservations, not logged in\n".
-   *         If the user is trying to book an itinerary with an invalid ID or without having done a
-   *         search, then return "No such itinerary {@code itineraryId}\n". If the user already has
-   *         a reservation on the same day as the one that they are trying to book now, then return
-   *         "You cannot book two flights in the same day\n". For all other errors, return "Booking
-   *         failed\n".
-   *
-   *         And if booking succeeded, return "Booked flight(s), reservation ID: [reservationId]\n"
-   *         where reservationId is a unique number in the reservation system that starts from 1 and
-   *         increments by 1 each time a successful reservation is made by any user in the system.
+   * @return false if no itinerary was found
    */
-  public String transaction_book(int itineraryId) {
-    try {
-      // TODO: YOUR CODE HERE
-
-      // Check if user is logged in
-      if (username == null) {
-        return "Cannot book reservations, not logged in\n";
+  private boolean searchRoutes(String originCity, String destinationCity, SearchOptions options,
+      int dayOfMonth, int numberOfItineraries, Appendable out) throws SQLException, IOException {
+    int lastDay = Math.max(dayOfMonth, options.lastDay);
+    loadFlights(dayOfMonth, lastDay);
+
+    List<List<Itinerary>> days = new ArrayList<>();
+    for (int d = dayOfMonth; d <= lastDay; d++) {
+      days.add(searchDay(FlightStore.get(database(), d), originCity, destinationCity, options,
+          numberOfItineraries));
+    }
+    int[] next = new int[days.size()];
+    while (searching.count() < numberOfItineraries) {
+      int best = -1;
+      for (int d = 0; d < days.size(); d++) {
+        if (next[d] < days.get(d).size() && (best < 0 || days.get(d).get(next[d]).cost(options.rank)
+            < days.get(best).get(next[best]).cost(options.rank))) {
+          best = d;
+        }
       }
-
-      // Check if the search result shows available itinerary
-      // and the itineraryId is in the valid range
-      if (itineraries == null || itineraryId < 0 || itineraryId >= itineraries.size()) {
-        return "No such itinerary " + itineraryId + "\n";
+      if (best < 0) {
+        break;
       }
-      try {
-        // Set autocommit to false
-        conn.setAutoCommit(false);
-
-        // Get the itinerary with the itineraryId
-        Itinerary bookItinerary = itineraries.get(itineraryId);
+      writeItinerary(days.get(best).get(next[best]++), out);
+    }
+    return searching.count() > 0;
+  }
 
+  /**
+   * Return the direct flights and the best routes under the rank of up to maxLegs flights of a day
+   * within the time window, merged by total cost with direct flights first on ties
+   */
+  private List<Itinerary> searchDay(FlightStore.Day day, String originCity, String destinationCity,
+      SearchOptions options, int numberOfItineraries) {
+    List<Itinerary> itineraries = new ArrayList<>();
+    int origin = day.cityId(originCity);
+    int dest = day.cityId(destinationCity);
+    if (origin < 0 || dest < 0) {
+      return itineraries;
+    }
+
+    // The outbound flights are sorted by cost and fid, so the direct ones come out in order
+    FlightStore.Ranking ranking = day.ranking(options.rank);
+    List<Itinerary> direct = new ArrayList<>();
+    for (int i = day.outStart(origin); i < day.outEnd(origin) && direct.size() < numberOfItineraries; i++) {
+      int flight = ranking.outbound(i);
+      if (day.dest[flight] == dest && day.time[flight] >= options.minTime
+          && day.time[flight] <= options.maxTime) {
+        direct.add(new Itinerary(flightFromStore(day, flight)));
+      }
+    }
+
+    int k = numberOfItineraries - direct.size();
+    List<int[]> routes;
+    if (options.maxLegs <= 1) {
+      routes = new ArrayList<>();
+    } else if (options.maxLegs == 2) {
+      routes = TwoLegSearch.search(day, ranking, origin, dest, options.minTime, options.maxTime, k);
+    } else {
+      routes = RouteSearch.search(day, ranking, origin, dest, 2, options.maxLegs, options.minTime,
+          options.maxTime, k, RouteSearch.DEFAULT_BUDGET);
+    }
+    int nextDirect = 0;
+    for (int[] route : routes) {
+      List<Flight> legs = new ArrayList<>();
+      for (int flight : route) {
+        legs.add(flightFromStore(day, flight));
+      }
+      Itinerary indirect = new Itinerary(legs);
+      while (nextDirect < direct.size()
+          && direct.get(nextDirect).compareTo(indirect, options.rank) <= 0) {
+        itineraries.add(direct.get(nextDirect++));
+      }
+      itineraries.add(indirect);
+    }
+    while (nextDirect < direct.size()) {
+      itineraries.add(direct.get(nextDirect++));
+    }
+    return itineraries;
+  }
+
+  /**
+   * Make sure the shared flight store holds the days firstDay to lastDay. All missing days are
+   * loaded with one scan of the day range.
+   */
+  private void loadFlights(int firstDay, int lastDay) throws SQLException {
+    int firstMissing = Integer.MAX_VALUE;
+    int lastMissing = Integer.MIN_VALUE;
+    for (int d = firstDay; d <= lastDay; d++) {
+      if (FlightStore.get(database(), d) == null) {
+        firstMissing = Math.min(firstMissing, d);
+        lastMissing = d;
+      }
+    }
+    if (firstMissing <= lastMissing) {
+      shard.dayFlightsStatement().clearParameters();
+      shard.dayFlightsStatement().setInt(1, firstMissing);
+      shard.dayFlightsStatement().setInt(2, lastMissing);
+      try (ResultSet rs = shard.dayFlightsStatement().executeQuery()) {
+        FlightStore.load(database(), firstMissing, lastMissing, rs);
+      }
+    }
+  }
+
+  private Flight flightFromStore(FlightStore.Day day, int flight) {
+    return new Flight(day.fid[flight], day.dayOfMonth, day.carrierId[flight], day.flightNum[flight],
+        day.cityName(day.origin[flight]), day.cityName(day.dest[flight]), day.time[flight],
+        day.capacity[flight], day.price[flight]);
+  }
+
+  /**
+   * Write the next itinerary of the current search and remember its flights for a later book.
+   * Itineraries of more than two flights are remembered with fid2 -1 and cannot be booked.
+   */
+  private void writeItinerary(Itinerary itinerary, Appendable out) throws IOException {
+    int i = searching.count();
+    searching.add(itinerary.f1.fid,
+        itinerary.count > 2 ? -1 : itinerary.f2 == null ? 0 : itinerary.f2.fid,
+        itinerary.f1.dayOfMonth);
+
+    out.append("Itinerary " + i + ": " + itinerary.count + " flight(s), " + itinerary.totalTime + " minutes\n");
+    out.append(itinerary.toString());
+  }
+
+  /**
+   * Implements the book itinerary function.
+   *
+   * @param itineraryId ID of the itinerary to book. This must be one that is returned by search in
+   *                    the current session.
+   *
+   * @return If the user is not logged in, then return "Cannot book reservations, not logged in\n".
+   *         If the user is trying to book an itinerary with an invalid ID or without having done a
+   *         search, then return "No such itinerary {@code itineraryId}\n". If the user already has
+   *         a reservation on the same day as the one that they are trying to book now, then return
+   *         "You cannot book two flights in the same day\n". For all other errors, return "Booking
+   *         failed\n".
+   *
+   *         And if booking succeeded, return "Booked flight(s), reservation ID: [reservationId]\n"
+   *         where reservationId is a unique number in the reservation system that starts from 1 and
+   *         increments by 1 each time a successful reservation is made by any user in the system.
+   */
+  public String transaction_book(int itineraryId) {
+    return transaction_book(itineraryId, 1);
+  }
+
+  /**
+   * Book several seats on the same itinerary in one transaction.
+   *
+   * Either all seats are booked or none is. Every seat gets its own reservation, all of them made
+   * with one capacity check and one batched insert.
+   *
+   * @param seats number of seats to book, at least 1
+   *
+   * @return The same as {@link #transaction_book(int)}, failing with "Booking failed\n" if fewer
+   *         than {@code seats} seats are left. If more than one seat was booked, return "Booked
+   *         [seats] seats, reservation IDs: [firstId]-[lastId]\n".
+   */
+  public String transaction_book(int itineraryId, int seats) {
+    beginCommand("book");
+    try {
+      // TODO: YOUR CODE HERE
+
+      // Check if user is logged in
+      if (username == null) {
+        return "Cannot book reservations, not logged in\n";
+      }
+
+      // Check if the search result shows available itinerary
+      // and the itineraryId is in the valid range
+      SearchState search = lastSearch.get();
+      if (search == null || itineraryId < 0 || itineraryId >= search.count()) {
+        return "No such itinerary " + itineraryId + "\n";
+      }
+      search.touch();
+
+      // Reservations hold at most two flights
+      if (search.fid2(itineraryId) < 0 || seats < 1) {
+        return "Booking failed\n";
+      }
+      return book(username, search.fid1(itineraryId), search.fid2(itineraryId),
+          search.dayOfMonth(itineraryId), seats);
+    } finally {
+      endCommand();
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Book seats on an itinerary for a user, as {@link #transaction_book(int, int)} once the
+   * itinerary is found
+   *
+   * @param fid2 0 for a direct flight
+   */
+  private String book(String user, int fid1, int fid2, int day, int seats) {
+    Itinerary bookItinerary = null;
+    // Reservation ID the seats of a booking on another shard are claimed under, 0 if none
+    int claim = 0;
+    boolean committing = false;
+    // When the user's shard holds the seat counters, the seats are taken in the booking transaction
+    Shard home = homeShard(user);
+    boolean seatsInHome = seatCounters() && home == shards[0];
+    bookingSoldOut = false;
+    bookingError = false;
+    try {
+      // Get the flights of the itinerary
+      bookItinerary = fid2 == 0 ? new Itinerary(getFlight(fid1, day))
+          : new Itinerary(getFlight(fid1, day), getFlight(fid2, day));
+
+      // On another shard, the seats are taken from the counters of the first shard before the
+      // reservations are written on the user's shard
+      int reservationID = 0;
+      if (seatCounters()) {
+        seedSeats(bookItinerary);
+      }
+      if (seatCounters() && !seatsInHome) {
+        reservationID = reserveSeats(user, day, bookItinerary, seats);
+        if (reservationID < 0) {
+          bookingSoldOut = true;
+          return "Booking failed\n";
+        }
+        claim = reservationID;
+      }
+
+      // Set autocommit to false
+      useShard(home);
+      conn.setAutoCommit(false);
+
+      // Reservations of an archived day left the capacity checks and the users' booked days
+      shard.archivedDayStatement().clearParameters();
+      shard.archivedDayStatement().setInt(1, day);
+      ResultSet archivedResultSet = shard.archivedDayStatement().executeQuery();
+      archivedResultSet.next();
+      boolean archived = archivedResultSet.getInt("count") > 0;
+      archivedResultSet.close();
+      if (archived) {
+        rollback();
+        if (claim != 0) {
+          settleClaim(claim, true);
+        }
+        return "Booking failed\n";
+      }
+
+      // A claim that took too long to settle may have been given up, see resolveClaim
+      if (claim != 0) {
+        shard.claimVoidedStatement().clearParameters();
+        shard.claimVoidedStatement().setInt(1, claim);
+        ResultSet voidedResultSet = shard.claimVoidedStatement().executeQuery();
+        voidedResultSet.next();
+        boolean voided = voidedResultSet.getInt("count") > 0;
+        voidedResultSet.close();
+        if (voided) {
+          rollback();
+          bookingError = true;
+          return "Booking failed\n";
+        }
+      }
+
+      if (!seatCounters()) {
         // Check the capacity for the flight 1
-        f1CapacityStatement.clearParameters();
-        f1CapacityStatement.setInt(1, bookItinerary.f1.fid);
-        ResultSet capacityResultSet = f1CapacityStatement.executeQuery();
+        shard.f1CapacityStatement().clearParameters();
+        shard.f1CapacityStatement().setInt(1, bookItinerary.f1.dayOfMonth);
+        shard.f1CapacityStatement().setInt(2, bookItinerary.f1.fid);
+        ResultSet capacityResultSet = shard.f1CapacityStatement().executeQuery();
         capacityResultSet.next();
-        if (checkFlightCapacity(bookItinerary.f1.fid) - capacityResultSet.getInt("count") <= 0) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+        if (bookItinerary.f1.capacity - capacityResultSet.getInt("count") < seats) {
+          rollback();
+          bookingSoldOut = true;
           return "Booking failed\n";
         }
         capacityResultSet.close();
 
         // Check the capacity for the flight 2
         if (bookItinerary.f2 != null) {
-          f2CapacityStatement.clearParameters();
-          f2CapacityStatement.setInt(1, bookItinerary.f2.fid);
-          capacityResultSet = f2CapacityStatement.executeQuery();
+          shard.f2CapacityStatement().clearParameters();
+          shard.f2CapacityStatement().setInt(1, bookItinerary.f1.dayOfMonth);
+          shard.f2CapacityStatement().setInt(2, bookItinerary.f2.fid);
+          capacityResultSet = shard.f2CapacityStatement().executeQuery();
           capacityResultSet.next();
-          if (checkFlightCapacity(bookItinerary.f2.fid) - capacityResultSet.getInt("count") <= 0) {
-            conn.rollback();
-            conn.setAutoCommit(true);
+          if (bookItinerary.f2.capacity - capacityResultSet.getInt("count") < seats) {
+            rollback();
+            bookingSoldOut = true;
             return "Booking failed\n";
           }
           capacityResultSet.close();
         }
+      }
 
-        // Check if user already has a reservation on the same day
-        userSameDayBookStatement.clearParameters();
-        userSameDayBookStatement.setString(1, username);
-        userSameDayBookStatement.setInt(2, bookItinerary.f1.dayOfMonth);
-        ResultSet sameDayResultSet = userSameDayBookStatement.executeQuery();
-        sameDayResultSet.next();
-        if (sameDayResultSet.getInt("count") > 0) {
-          conn.rollback();
-          conn.setAutoCommit(true);
-          return "You cannot book two flights in the same day\n";
+      // Mark the day in the user's booked days, unless the user already has a reservation on it
+      int dayBit = dayBit(bookItinerary.f1.dayOfMonth);
+      shard.bookUserDayStatement().clearParameters();
+      shard.bookUserDayStatement().setInt(1, dayBit);
+      shard.bookUserDayStatement().setString(2, user);
+      shard.bookUserDayStatement().setInt(3, dayBit);
+      if (HOLD_TTL_SECONDS > 0) {
+        shard.bookUserDayStatement().setString(4, user);
+        shard.bookUserDayStatement().setInt(5, bookItinerary.f1.dayOfMonth);
+      }
+      if (shard.bookUserDayStatement().executeUpdate() == 0) {
+        rollback();
+        if (claim != 0) {
+          settleClaim(claim, true);
         }
-        sameDayResultSet.close();
+        return "You cannot book two flights in the same day\n";
+      }
 
-        // Get a reservation id for booking
-        getReservationIDStatement.clearParameters();
-        ResultSet nextIDResultSet = getReservationIDStatement.executeQuery();
+      // Get a reservation id for booking, counting the reservations only without seat counters since
+      // the count serializes every booking
+      if (seatsInHome) {
+        reservationID = nextReservationIds(seats);
+      } else if (!seatCounters()) {
+        shard.getReservationIDStatement().clearParameters();
+        ResultSet nextIDResultSet = shard.getReservationIDStatement().executeQuery();
         nextIDResultSet.next();
-        int reservationID = nextIDResultSet.getInt("count") + 1;
+        reservationID = nextIDResultSet.getInt("count") + 1;
         nextIDResultSet.close();
+      }
 
-        // Fill out the information of the inserting statement for the reservation
-        int price = bookItinerary.f1.price;
-        bookFlightStatement.clearParameters();
-        bookFlightStatement.setInt(1, reservationID);
-        bookFlightStatement.setString(2, username);
-        bookFlightStatement.setInt(3,bookItinerary.f1.fid);
+      // Fill out the information of the inserting statement for every seat's reservation
+      int price = bookItinerary.f1.price;
+      if (bookItinerary.f2 != null) {
+        price += bookItinerary.f2.price;
+      }
+      shard.bookFlightStatement().clearParameters();
+      for (int seat = 0; seat < seats; seat++) {
+        shard.bookFlightStatement().setInt(1, reservationID + seat);
+        shard.bookFlightStatement().setString(2, user);
+        shard.bookFlightStatement().setInt(3,bookItinerary.f1.fid);
         if (bookItinerary.f2 != null) {
-          bookFlightStatement.setInt(4,bookItinerary.f2.fid);
-          price += bookItinerary.f2.price;
+          shard.bookFlightStatement().setInt(4,bookItinerary.f2.fid);
         } else {
-          bookFlightStatement.setNull(4,java.sql.Types.INTEGER);
+          shard.bookFlightStatement().setNull(4,java.sql.Types.INTEGER);
         }
-        bookFlightStatement.setInt(5,0);
-        bookFlightStatement.setInt(6, 0);
-        bookFlightStatement.setInt(7,bookItinerary.f1.dayOfMonth);
-        bookFlightStatement.setInt(8,price);
-        bookFlightStatement.executeUpdate();
-        conn.commit();
-        conn.setAutoCommit(true);
+        shard.bookFlightStatement().setInt(5,0);
+        shard.bookFlightStatement().setInt(6, 0);
+        shard.bookFlightStatement().setInt(7,bookItinerary.f1.dayOfMonth);
+        shard.bookFlightStatement().setInt(8,price);
+        if (HOLD_TTL_SECONDS > 0) {
+          shard.bookFlightStatement().setInt(9, HOLD_TTL_SECONDS);
+        } else {
+          shard.bookFlightStatement().setNull(9, java.sql.Types.INTEGER);
+        }
+        shard.bookFlightStatement().addBatch();
+      }
+      shard.bookFlightStatement().executeBatch();
+
+      // Take the seats last, so the booking waits for seat slots only once it holds every other lock
+      // it needs and two bookings can never wait on each other through them
+      if (seatsInHome && !takeSeats(bookItinerary, seats)) {
+        rollback();
+        bookingSoldOut = true;
+        return "Booking failed\n";
+      }
+      committing = true;
+      commit();
+      wrote();
+      if (claim != 0) {
+        try {
+          settleClaim(claim, false);
+        } catch (SQLException e) {
+          // The booking stands, reconcileSeats drops the claim
+          e.printStackTrace();
+        }
+      }
+      if (seats == 1) {
         return "Booked flight(s), reservation ID: " + reservationID + "\n";
+      }
+      return "Booked " + seats + " seats, reservation IDs: " + reservationID + "-"
+          + (reservationID + seats - 1) + "\n";
+
+    } catch (SQLException e) {
+      try {
+        if (!conn.getAutoCommit()) {
+          rollback();
+        }
+        // A booking whose commit failed may still have been written, reconcileSeats settles its
+        // claim once it can tell
+        if (claim != 0 && !committing) {
+          settleClaim(claim, true);
+        }
+        // If the error is deadlock, then call this method recursively
+        if (retryOnDeadLock(e)) {
+          return book(user, fid1, fid2, day, seats);
+        }
+      } catch (SQLException ex) {
+        ex.printStackTrace();
+      }
+      e.printStackTrace();
+      bookingError = true;
+      return "Booking failed\n";
+    }
+  }
+
+  /**
+   * Queue the logged in user for an itinerary of the last search that could not be booked. When
+   * seats of its flights are freed, the {@link WaitlistPromoter} books them for the users queued
+   * for them in the order they joined, see {@link #promoteWaitlist}.
+   *
+   * @param itineraryId ID of the itinerary as in {@link #transaction_book(int)}
+   * @param seats number of seats to book, at least 1
+   *
+   * @return If no user is logged in, return "Cannot join waitlist, not logged in\n". If the
+   *         itinerary is not found, return "No such itinerary [itineraryId]\n". If a flight of the
+   *         itinerary has fewer seats than requested in total, if the seats can still be booked,
+   *         or for any other error, return "Failed to join waitlist\n". Otherwise return "Joined
+   *         waitlist for itinerary [itineraryId]\n".
+   */
+  public String transaction_waitlist(int itineraryId, int seats) {
+    beginCommand("waitlist");
+    try {
+      if (username == null) {
+        return "Cannot join waitlist, not logged in\n";
+      }
+
+      SearchState search = lastSearch.get();
+      if (search == null || itineraryId < 0 || itineraryId >= search.count()) {
+        return "No such itinerary " + itineraryId + "\n";
+      }
+      search.touch();
+      if (search.fid2(itineraryId) < 0 || seats < 1) {
+        return "Failed to join waitlist\n";
+      }
+
+      useShard(shards[0]);
+      try {
+        // An entry needing more seats than a flight has would block the queue forever
+        int day = search.dayOfMonth(itineraryId);
+        Itinerary itinerary = search.fid2(itineraryId) == 0
+            ? new Itinerary(getFlight(search.fid1(itineraryId), day))
+            : new Itinerary(getFlight(search.fid1(itineraryId), day),
+                getFlight(search.fid2(itineraryId), day));
+        for (Flight f : itinerary.flights) {
+          if (f.capacity < seats) {
+            return "Failed to join waitlist\n";
+          }
+        }
+
+        // Only an itinerary that is full for the seats is queued, otherwise the user can book it
+        if (hasSeats(itinerary, seats)) {
+          return "Failed to join waitlist\n";
+        }
 
+        conn.setAutoCommit(false);
+        shard.joinWaitlistStatement().clearParameters();
+        shard.joinWaitlistStatement().setString(1, username);
+        shard.joinWaitlistStatement().setInt(2, search.fid1(itineraryId));
+        shard.joinWaitlistStatement().setInt(3, search.fid2(itineraryId));
+        shard.joinWaitlistStatement().setInt(4, day);
+        shard.joinWaitlistStatement().setInt(5, seats);
+        shard.joinWaitlistStatement().executeUpdate();
+        commit();
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          if (!conn.getAutoCommit()) {
+            rollback();
+          }
           // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)){
-            return transaction_book(itineraryId);
+          if (retryOnDeadLock(e)) {
+            return transaction_waitlist(itineraryId, seats);
           }
         } catch (SQLException ex) {
           ex.printStackTrace();
         }
         e.printStackTrace();
-        return "Booking failed\n";
+        return "Failed to join waitlist\n";
       }
+
+      // Seats may have been freed before the user joined
+      WaitlistPromoter.seatsFreed(database());
+      return "Joined waitlist for itinerary " + itineraryId + "\n";
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
 
+  /**
+   * Book the itineraries of the waitlist in the order users joined it, reading it in pages of the
+   * given size.
+   *
+   * Each entry is booked in a transaction of its own and leaves the queue once booked, or once it
+   * fails for good, e.g. because the user booked another flight on that day or the day was
+   * archived. An entry that does not fit in the seats left keeps its place, and every later entry
+   * sharing a flight with it waits behind it, so freed seats always go to the user who has waited
+   * longest. An entry failing on a database error keeps its place without holding up the others and
+   * is tried again on the next run.
+   *
+   * @return the number of entries booked
+   */
+  public int promoteWaitlist(int batchSize) throws SQLException {
+    beginCommand("promote");
+    try {
+      Set<Integer> blocked = new HashSet<>();
+      int promoted = 0;
+      int lastId = 0;
+      int read;
+      do {
+        List<int[]> entries = new ArrayList<>();
+        List<String> users = new ArrayList<>();
+        shards[0].getWaitlistStatement().clearParameters();
+        shards[0].getWaitlistStatement().setInt(1, batchSize);
+        shards[0].getWaitlistStatement().setInt(2, lastId);
+        try (ResultSet rs = shards[0].getWaitlistStatement().executeQuery()) {
+          while (rs.next()) {
+            entries.add(new int[] { rs.getInt("id"), rs.getInt("fid1"), rs.getInt("fid2"),
+                rs.getInt("date"), rs.getInt("seats") });
+            users.add(rs.getString("username"));
+          }
+        }
+        read = entries.size();
+
+        for (int i = 0; i < read; i++) {
+          int[] entry = entries.get(i);
+          lastId = entry[0];
+          if (blocked.contains(entry[1]) || blocked.contains(entry[2])) {
+            block(blocked, entry);
+            continue;
+          }
+          String response = book(users.get(i), entry[1], entry[2], entry[3], entry[4]);
+          if (response.startsWith("Booked")) {
+            promoted++;
+          } else if (bookingSoldOut) {
+            block(blocked, entry);
+            continue;
+          } else if (bookingError) {
+            continue;
+          }
+          shards[0].leaveWaitlistStatement().clearParameters();
+          shards[0].leaveWaitlistStatement().setInt(1, entry[0]);
+          shards[0].leaveWaitlistStatement().executeUpdate();
+        }
+      } while (read == batchSize);
+      return promoted;
+    } finally {
+      endCommand();
+    }
+  }
+
+  /**
+   * Return true if every flight of the itinerary has the seats left, as a booking would count them
+   */
+  private boolean hasSeats(Itinerary itinerary, int seats) throws SQLException {
+    if (seatCounters()) {
+      for (Flight f : itinerary.flights) {
+        List<int[]> slots = flightSeats(f.fid);
+        // A flight without slots was never booked
+        int free = slots.isEmpty() ? f.capacity : 0;
+        for (int[] s : slots) {
+          free += s[1];
+        }
+        if (free < seats) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    shard.f1CapacityStatement().clearParameters();
+    shard.f1CapacityStatement().setInt(1, itinerary.f1.dayOfMonth);
+    shard.f1CapacityStatement().setInt(2, itinerary.f1.fid);
+    try (ResultSet rs = shard.f1CapacityStatement().executeQuery()) {
+      rs.next();
+      if (itinerary.f1.capacity - rs.getInt("count") < seats) {
+        return false;
+      }
+    }
+    if (itinerary.f2 != null) {
+      shard.f2CapacityStatement().clearParameters();
+      shard.f2CapacityStatement().setInt(1, itinerary.f1.dayOfMonth);
+      shard.f2CapacityStatement().setInt(2, itinerary.f2.fid);
+      try (ResultSet rs = shard.f2CapacityStatement().executeQuery()) {
+        rs.next();
+        if (itinerary.f2.capacity - rs.getInt("count") < seats) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Keep later waitlist entries on the flights of the entry behind it, 0 is no second flight
+  private static void block(Set<Integer> blocked, int[] entry) {
+    blocked.add(entry[1]);
+    if (entry[2] != 0) {
+      blocked.add(entry[2]);
+    }
+  }
+
   /**
    * Implements the pay function.
    *
@@ -729,12 +1750,13 @@ public class Query {
    *         reservation [reservationId] under user: [username]\n" If the user does not have enough
    *         money in their account, then return "User has only [balance] in account but itinerary
    *         costs [cost]\n" For all other errors, return "Failed to pay for reservation
-   *         [reservationId]\n"
+   *         [reservationId]\n" A reservation whose hold expired counts as not found.
    *
    *         If successful, return "Paid reservation: [reservationId] remaining balance:
    *         [balance]\n" where [balance] is the remaining balance in the user's account.
    */
   public String transaction_pay(int reservationId) {
+    beginCommand("pay");
     try {
       // TODO: YOUR CODE HERE
 
@@ -742,20 +1764,20 @@ public class Query {
       if (username == null) {
         return "Cannot pay, not logged in\n";
       }
+      useShard(homeShard(username));
       try {
         // Set autocommit to false
         conn.setAutoCommit(false);
 
         // Get the price of the unpaid reservation
-        getReservationPriceStatement.clearParameters();
-        getReservationPriceStatement.setString(1, username);
-        getReservationPriceStatement.setInt(2, reservationId);
-        ResultSet priceResultSet = getReservationPriceStatement.executeQuery();
+        shard.getReservationPriceStatement().clearParameters();
+        shard.getReservationPriceStatement().setString(1, username);
+        shard.getReservationPriceStatement().setInt(2, reservationId);
+        ResultSet priceResultSet = shard.getReservationPriceStatement().executeQuery();
 
         // Check if the reservation exists
         if (!priceResultSet.next()) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
         }
 
@@ -764,9 +1786,9 @@ public class Query {
         priceResultSet.close();
 
         // Get the balance of the user
-        getUserBalanceStatement.clearParameters();
-        getUserBalanceStatement.setString(1, username);
-        ResultSet balanceResultSet = getUserBalanceStatement.executeQuery();
+        shard.getUserBalanceStatement().clearParameters();
+        shard.getUserBalanceStatement().setString(1, username);
+        ResultSet balanceResultSet = shard.getUserBalanceStatement().executeQuery();
         int balance = 0;
         if (balanceResultSet.next()) {
           balance = balanceResultSet.getInt("balance");
@@ -775,32 +1797,31 @@ public class Query {
 
         // Check if the price is greater than the user balance
         if (price > balance) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "User has only " + balance + " in account but itinerary costs " + price + "\n";
         }
 
         // Update the paid status of the reservation
-        updatePaidStatusStatement.clearParameters();
-        updatePaidStatusStatement.setString(1, username);
-        updatePaidStatusStatement.setInt(2, reservationId);
-        updatePaidStatusStatement.executeUpdate();
+        shard.updatePaidStatusStatement().clearParameters();
+        shard.updatePaidStatusStatement().setString(1, username);
+        shard.updatePaidStatusStatement().setInt(2, reservationId);
+        shard.updatePaidStatusStatement().executeUpdate();
 
         // Update the balance of the user
-        updateUserBalanceStatement.clearParameters();
-        updateUserBalanceStatement.setInt(1, balance - price);
-        updateUserBalanceStatement.setString(2, username);
-        updateUserBalanceStatement.executeUpdate();
+        shard.updateUserBalanceStatement().clearParameters();
+        shard.updateUserBalanceStatement().setInt(1, balance - price);
+        shard.updateUserBalanceStatement().setString(2, username);
+        shard.updateUserBalanceStatement().executeUpdate();
 
-        conn.commit();
+        commit();
+        wrote();
         return "Paid reservation: " + reservationId + " remaining balance: " + (balance - price) + "\n";
 
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)){
+          if (retryOnDeadLock(e)) {
             return transaction_pay(reservationId);
           }
         } catch (SQLException ex) {
@@ -810,6 +1831,7 @@ public class Query {
         return "Failed to pay for reservation " + reservationId + "\n";
       }
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
@@ -833,6 +1855,7 @@ public class Query {
    * @see Flight#toString()
    */
   public String transaction_reservations() {
+    beginCommand("reservations");
     try {
       // TODO: YOUR CODE HERE
 
@@ -840,6 +1863,7 @@ public class Query {
       if (username == null) {
         return "Cannot view reservations, not logged in\n";
       }
+      useShard(readShard(homeShard(username)));
 
       try {
         // String buffer to build a reservation information string
@@ -849,9 +1873,9 @@ public class Query {
         conn.setAutoCommit(false);
 
         // Get the reservation with the username
-        getUserReservationStatement.clearParameters();
-        getUserReservationStatement.setString(1, username);
-        ResultSet reservationResultSet = getUserReservationStatement.executeQuery();
+        shard.getUserReservationStatement().clearParameters();
+        shard.getUserReservationStatement().setString(1, username);
+        ResultSet reservationResultSet = shard.getUserReservationStatement().executeQuery();
 
         // Iterate the query result
         while (reservationResultSet.next()) {
@@ -869,23 +1893,7 @@ public class Query {
           }
 
           // Get the information of the flight 1
-          getFlightInfoStatement.clearParameters();
-          getFlightInfoStatement.setInt(1,fid1);
-          ResultSet f1ResultSet = getFlightInfoStatement.executeQuery();
-          f1ResultSet.next();
-          int f1_result_fid = f1ResultSet.getInt("fid");
-          int f1_result_dayOfMonth = f1ResultSet.getInt("day_of_month");
-          String f1_result_carrierId = f1ResultSet.getString("carrier_ID");
-          String f1_result_flightNum = f1ResultSet.getString("flight_num");
-          String f1_result_originCity = f1ResultSet.getString("origin_city");
-          String f1_result_destCity = f1ResultSet.getString("dest_city");
-          int f1_result_time = f1ResultSet.getInt("actual_time");
-          int f1_result_capacity = f1ResultSet.getInt("capacity");
-          int f1_result_price = f1ResultSet.getInt("price");
-
-          // Create a new Flight f1 with the query result
-          Flight f1 = new Flight(f1_result_fid, f1_result_dayOfMonth, f1_result_carrierId, f1_result_flightNum,
-                  f1_result_originCity, f1_result_destCity, f1_result_time, f1_result_capacity, f1_result_price);
+          Flight f1 = getFlight(fid1);
 
           // Check if flight 2 also exists in this reservation
           if (fid2 == 0) {
@@ -893,23 +1901,7 @@ public class Query {
             sb.append("Reservation " + id + " paid: " + isPaid + ":\n" +  f1.toString() + "\n");
           } else {
             // Get the information of flight 2
-            getFlightInfoStatement.clearParameters();
-            getFlightInfoStatement.setInt(1, fid2);
-            ResultSet f2ResultSet = getFlightInfoStatement.executeQuery();
-            f2ResultSet.next();
-            int f2_result_fid = f2ResultSet.getInt("fid");
-            int f2_result_dayOfMonth = f2ResultSet.getInt("day_of_month");
-            String f2_result_carrierId = f2ResultSet.getString("carrier_ID");
-            String f2_result_flightNum = f2ResultSet.getString("flight_num");
-            String f2_result_originCity = f2ResultSet.getString("origin_city");
-            String f2_result_destCity = f2ResultSet.getString("dest_city");
-            int f2_result_time = f2ResultSet.getInt("actual_time");
-            int f2_result_capacity = f2ResultSet.getInt("capacity");
-            int f2_result_price = f2ResultSet.getInt("price");
-
-            // Create a new Flgiht f2 with the query result
-            Flight f2 = new Flight(f2_result_fid, f2_result_dayOfMonth, f2_result_carrierId, f2_result_flightNum,
-                    f2_result_originCity, f2_result_destCity, f2_result_time, f2_result_capacity, f2_result_price);
+            Flight f2 = getFlight(fid2);
 
             // Append f1 and f2 with their information
             sb.append("Reservation " + id +  " paid: " + isPaid +":\n" +  f1.toString() + "\n" +
@@ -919,21 +1911,18 @@ public class Query {
 
         // Check if the reservation does not exist
         if (sb.length() == 0) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "No reservations found\n";
         }
-        conn.commit();
-        conn.setAutoCommit(true);
+        commit();
         // Return the StringBuffer that we built to string
         return sb.toString();
 
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)){
+          if (retryOnDeadLock(e)) {
             return transaction_reservations();
           }
         } catch (SQLException ex) {
@@ -943,6 +1932,7 @@ public class Query {
         return "Failed to retrieve reservations\n";
       }
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
@@ -960,6 +1950,7 @@ public class Query {
    *         Even though a reservation has been canceled, its ID should not be reused by the system.
    */
   public String transaction_cancel(int reservationId) {
+    beginCommand("cancel");
     try {
       // TODO: YOUR CODE HERE
 
@@ -967,63 +1958,85 @@ public class Query {
       if (username == null) {
         return "Cannot cancel reservations, not logged in\n";
       }
+      useShard(homeShard(username));
       try {
         // Set autocommit to false
         conn.setAutoCommit(false);
 
         // Get the information of the reservation with the reservationId parameter
-        getReservationCancelStatement.clearParameters();
-        getReservationCancelStatement.setString(1, username);
-        getReservationCancelStatement.setInt(2, reservationId);
-        ResultSet cancelResultSet = getReservationCancelStatement.executeQuery();
+        shard.getReservationCancelStatement().clearParameters();
+        shard.getReservationCancelStatement().setString(1, username);
+        shard.getReservationCancelStatement().setInt(2, reservationId);
+        ResultSet cancelResultSet = shard.getReservationCancelStatement().executeQuery();
         if (!cancelResultSet.next()) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Failed to cancel reservation " + reservationId + "\n";
         }
 
         // Check if the reservation is already canceled
         if (cancelResultSet.getInt("canceled") == 1) {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           return "Failed to cancel reservation " + reservationId + "\n";
         }
 
-        // Get the paid status and the price of the reservation
+        // Get the flights, the paid status and the price of the reservation
+        int fid1 = cancelResultSet.getInt("fid1");
+        int fid2 = cancelResultSet.getInt("fid2");
+        int day = cancelResultSet.getInt("date");
         int paid = cancelResultSet.getInt("paid");
         int price = cancelResultSet.getInt("price");
 
         // Update the canceled status of the reservation.
-        updateCancelStatusStatement.clearParameters();
-        updateCancelStatusStatement.setString(1, username);
-        updateCancelStatusStatement.setInt(2, reservationId);
-        updateCancelStatusStatement.executeUpdate();
+        shard.updateCancelStatusStatement().clearParameters();
+        shard.updateCancelStatusStatement().setString(1, username);
+        shard.updateCancelStatusStatement().setInt(2, reservationId);
+        shard.updateCancelStatusStatement().executeUpdate();
+
+        // Free the day for another booking if this was the user's last reservation on it
+        freeUserDay(username, day);
 
         // Check if the reservation is paid
         if (paid == 1) {
           // Get the balance of the user
-          getUserBalanceStatement.clearParameters();
-          getUserBalanceStatement.setString(1, username);
-          ResultSet balanceResultSet = getUserBalanceStatement.executeQuery();
+          shard.getUserBalanceStatement().clearParameters();
+          shard.getUserBalanceStatement().setString(1, username);
+          ResultSet balanceResultSet = shard.getUserBalanceStatement().executeQuery();
           balanceResultSet.next();
 
           // Update the balance of the user by adding the refund price
           int userBalance = balanceResultSet.getInt("balance");
-          updateUserBalanceStatement.clearParameters();
-          updateUserBalanceStatement.setInt(1,userBalance + price);
-          updateUserBalanceStatement.setString(2, username);
-          updateUserBalanceStatement.executeUpdate();
+          shard.updateUserBalanceStatement().clearParameters();
+          shard.updateUserBalanceStatement().setInt(1,userBalance + price);
+          shard.updateUserBalanceStatement().setString(2, username);
+          shard.updateUserBalanceStatement().executeUpdate();
         }
-        conn.commit();
-        conn.setAutoCommit(true);
+        // Give the seat back with the cancel when the user's shard holds the counters, else record
+        // with the cancel that it has to be given back
+        boolean seatsInHome = seatCounters() && shard == shards[0];
+        if (seatsInHome) {
+          releaseSeats(fid1, fid2, 1);
+        } else if (seatCounters()) {
+          addSeatRelease(reservationId, fid1, fid2);
+        }
+        commit();
+        wrote();
+
+        // On another shard the seat goes back once the cancel is durable, or by reconcileSeats
+        if (seatCounters() && !seatsInHome) {
+          try {
+            applySeatRelease(shard, reservationId);
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+        WaitlistPromoter.seatsFreed(database());
         return "Canceled reservation " + reservationId + "\n";
 
       } catch (SQLException e) {
         try {
-          conn.rollback();
-          conn.setAutoCommit(true);
+          rollback();
           // If the error is deadlock, then call this method recursively
-          if (isDeadLock(e)) {
+          if (retryOnDeadLock(e)) {
             return transaction_cancel(reservationId);
           }
         } catch (SQLException ex) {
@@ -1033,22 +2046,54 @@ public class Query {
         return "Failed to cancel reservation " + reservationId + "\n";
       }
     } finally {
+      endCommand();
       checkDanglingTransaction();
     }
   }
 
   /**
-   * Example utility function that uses prepared statements
+   * Create a flight from the current row of the result set. Columns are looked up with the given
+   * prefix, e.g. "f1_" for "f1_fid".
+   */
+  private Flight flightFromResultSet(ResultSet resultSet, String prefix) throws SQLException {
+    int result_fid = resultSet.getInt(prefix + "fid");
+    int result_dayOfMonth = resultSet.getInt(prefix + "day_of_month");
+    String result_carrierId = resultSet.getString(prefix + "carrier_id");
+    String result_flightNum = resultSet.getString(prefix + "flight_num");
+    String result_originCity = resultSet.getString(prefix + "origin_city");
+    String result_destCity = resultSet.getString(prefix + "dest_city");
+    int result_time = resultSet.getInt(prefix + "actual_time");
+    int result_capacity = resultSet.getInt(prefix + "capacity");
+    int result_price = resultSet.getInt(prefix + "price");
+
+    return new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum,
+            result_originCity, result_destCity, result_time, result_capacity, result_price);
+  }
+
+  /**
+   * Look up a flight of the given day by its fid, in the shared flight store if the day is loaded
+   */
+  private Flight getFlight(int fid, int dayOfMonth) throws SQLException {
+    FlightStore.Day day = FlightStore.get(database(), dayOfMonth);
+    int flight = day == null ? -1 : day.indexOf(fid);
+    return flight < 0 ? getFlight(fid) : flightFromStore(day, flight);
+  }
+
+  /**
+   * Look up a flight by its fid
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
+  private Flight getFlight(int fid) throws SQLException {
+    // Flights are only on the first shard and its replica
+    PreparedStatement getFlightInfoStatement = (shard.index == 0 ? shard : shards[0])
+        .getFlightInfoStatement();
+    getFlightInfoStatement.clearParameters();
+    getFlightInfoStatement.setInt(1, fid);
+    ResultSet results = getFlightInfoStatement.executeQuery();
     results.next();
-    int capacity = results.getInt("capacity");
+    Flight flight = flightFromResultSet(results, "");
     results.close();
 
-    return capacity;
+    return flight;
   }
 
   /**
@@ -1057,7 +2102,7 @@ public class Query {
    */
   private void checkDanglingTransaction() {
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
+      try (ResultSet rs = shard.tranCountStatement().executeQuery()) {
         rs.next();
         int count = rs.getInt("tran_count");
         if (count > 0) {
@@ -1072,88 +2117,1033 @@ public class Query {
     }
   }
 
-  private static boolean isDeadLock(SQLException ex) {
-    return ex.getErrorCode() == 1205;
-  }
-
   /**
-   * A class to store flight information.
+   * Derive the PBKDF2 hash of a password with the given salt
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
-
-    public Flight(int fid, int dayOfMonth, String carrierId, String flightNum,
-                  String originCity, String destCity, int time, int capacity, int price) {
-      this.fid = fid;
-      this.dayOfMonth = dayOfMonth;
-      this.carrierId = carrierId;
-      this.flightNum = flightNum;
-      this.originCity = originCity;
-      this.destCity = destCity;
-      this.time = time;
-      this.capacity = capacity;
-      this.price = price;
+  private byte[] hashPassword(String password, byte[] salt) {
+    QueryEvents.PasswordHashEvent event = new QueryEvents.PasswordHashEvent();
+    event.begin();
+    // Specify the hash parameters
+    KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+    // Generate the hash
+    byte[] hash;
+    try {
+      SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+      hash = factory.generateSecret(spec).getEncoded();
+    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+      throw new IllegalStateException();
     }
-
-    @Override
-    public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
-          + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
-          + " Capacity: " + capacity + " Price: " + price;
+    event.end();
+    if (event.shouldCommit()) {
+      event.command = session.command;
+      event.user = session.user;
+      event.iterations = HASH_STRENGTH;
+      event.commit();
     }
+    return hash;
   }
 
-  class Itinerary implements Comparable<Itinerary> {
-    public Flight f1;
-    public Flight f2;
-    public int totalTime;
-    public int count;
+  /**
+   * Return the bit of the day of the month in the booked days of a user
+   */
+  private static int dayBit(int dayOfMonth) {
+    return 1 << (dayOfMonth - 1);
+  }
 
-    // Direct flight
-    public Itinerary(Flight f1) {
-      this.f1 = f1;
-      this.totalTime = f1.time;
-      this.count = 1;
-    }
+  /**
+   * Clear the day from the user's booked days on the current shard if the user has no active
+   * reservation left on it
+   */
+  private void freeUserDay(String user, int dayOfMonth) throws SQLException {
+    shard.freeUserDayStatement().clearParameters();
+    shard.freeUserDayStatement().setInt(1, dayBit(dayOfMonth));
+    shard.freeUserDayStatement().setString(2, user);
+    shard.freeUserDayStatement().setString(3, user);
+    shard.freeUserDayStatement().setInt(4, dayOfMonth);
+    shard.freeUserDayStatement().executeUpdate();
+  }
 
-    // Indirect flight
-    public Itinerary(Flight f1, Flight f2) {
-      this.f1 = f1;
-      this.f2 = f2;
-      this.totalTime = f1.time + f2.time;
-      this.count = 2;
-    }
+  /**
+   * Whether seats are counted in FlightSeats of the first shard rather than by counting reservations
+   */
+  private boolean seatCounters() {
+    return shards.length > 1 || SEAT_SLOTS > 1;
+  }
 
-    @Override
-    public String toString() {
-      if (count == 1) {
-        return this.f1.toString() + "\n";
-      } else {
-        return this.f1.toString() + "\n" + this.f2.toString() + "\n";
+  /**
+   * Take seats on the flights of the itinerary and a block of reservation IDs for them in the
+   * counters of the first shard, for a booking on another shard. This runs as a transaction of its
+   * own before the reservations are written, so no transaction ever spans two shards; the seats are
+   * claimed under the first reservation ID until the booking settles the claim, see
+   * {@link #settleClaim} and {@link #resolveClaim}.
+   *
+   * @return the first reservation ID, or -1 if a flight has fewer seats left
+   */
+  private int reserveSeats(String user, int day, Itinerary itinerary, int seats)
+      throws SQLException {
+    useShard(shards[0]);
+    conn.setAutoCommit(false);
+    try {
+      if (!takeSeats(itinerary, seats)) {
+        rollback();
+        return -1;
       }
+      int reservationID = nextReservationIds(seats);
+      shard.claimSeatsStatement().clearParameters();
+      shard.claimSeatsStatement().setInt(1, reservationID);
+      shard.claimSeatsStatement().setString(2, user);
+      shard.claimSeatsStatement().setInt(3, day);
+      shard.claimSeatsStatement().setInt(4, itinerary.f1.fid);
+      shard.claimSeatsStatement().setInt(5, itinerary.f2 == null ? 0 : itinerary.f2.fid);
+      shard.claimSeatsStatement().setInt(6, seats);
+      shard.claimSeatsStatement().executeUpdate();
+      commitStep();
+      return reservationID;
+    } catch (SQLException e) {
+      rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Settle the seat claim of a booking on another shard, in a transaction on the first shard. The
+   * seats are given back if giveBack is set and no one settled the claim before.
+   */
+  private void settleClaim(int id, boolean giveBack) throws SQLException {
+    useShard(shards[0]);
+    conn.setAutoCommit(false);
+    try {
+      int[] claim = null;
+      shard.settleClaimStatement().clearParameters();
+      shard.settleClaimStatement().setInt(1, id);
+      try (ResultSet rs = shard.settleClaimStatement().executeQuery()) {
+        if (rs.next()) {
+          claim = new int[] { rs.getInt("fid1"), rs.getInt("fid2"), rs.getInt("seats") };
+        }
+      }
+      if (claim != null && giveBack) {
+        releaseSeats(claim[0], claim[1], claim[2]);
+      }
+      commitStep();
+    } catch (SQLException e) {
+      rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Settle a claim its booking left unsettled. The seats stay taken if the booking was written on
+   * the user's shard. Otherwise the claim is voided there first, so the booking can no longer be
+   * written, and the seats are given back.
+   */
+  private void resolveClaim(int id, String user, int day) throws SQLException {
+    useShard(homeShard(user));
+    conn.setAutoCommit(false);
+    boolean booked;
+    try {
+      shard.claimBookedStatement().clearParameters();
+      shard.claimBookedStatement().setInt(1, day);
+      shard.claimBookedStatement().setInt(2, id);
+      shard.claimBookedStatement().setInt(3, day);
+      shard.claimBookedStatement().setInt(4, id);
+      try (ResultSet rs = shard.claimBookedStatement().executeQuery()) {
+        rs.next();
+        booked = rs.getInt("count") > 0;
+      }
+      if (!booked) {
+        shard.voidClaimStatement().clearParameters();
+        shard.voidClaimStatement().setInt(1, id);
+        shard.voidClaimStatement().setInt(2, id);
+        shard.voidClaimStatement().executeUpdate();
+      }
+      commitStep();
+    } catch (SQLException e) {
+      rollback();
+      throw e;
+    }
+    settleClaim(id, !booked);
+  }
+
+  /**
+   * Record in the current transaction that the seat of a canceled reservation has to be given back
+   * to the counters of the first shard, see {@link #applySeatRelease}
+   *
+   * @param fid2 0 if there is no second flight
+   */
+  private void addSeatRelease(int id, int fid1, int fid2) throws SQLException {
+    shard.addSeatReleaseStatement().clearParameters();
+    shard.addSeatReleaseStatement().setInt(1, id);
+    shard.addSeatReleaseStatement().setInt(2, fid1);
+    shard.addSeatReleaseStatement().setInt(3, fid2);
+    shard.addSeatReleaseStatement().executeUpdate();
+  }
+
+  /**
+   * Give the seat of a canceled reservation on another shard back to the counters of the first
+   * shard, unless it was given back before.
+   *
+   * The pending release stays locked on the user's shard while the counters are updated, and is
+   * removed only once they committed. A release whose removal failed is applied again by
+   * {@link #reconcileSeats}, and its mark in ReleasedSeats keeps the seat from being given twice.
+   *
+   * @return false if the release was no longer pending
+   */
+  private boolean applySeatRelease(Shard home, int id) throws SQLException {
+    useShard(home);
+    conn.setAutoCommit(false);
+    try {
+      int fid1;
+      int fid2;
+      home.getSeatReleaseStatement().clearParameters();
+      home.getSeatReleaseStatement().setInt(1, id);
+      try (ResultSet rs = home.getSeatReleaseStatement().executeQuery()) {
+        if (!rs.next()) {
+          rollback();
+          return false;
+        }
+        fid1 = rs.getInt("fid1");
+        fid2 = rs.getInt("fid2");
+      }
+
+      useShard(shards[0]);
+      conn.setAutoCommit(false);
+      try {
+        shard.markSeatsReleasedStatement().clearParameters();
+        shard.markSeatsReleasedStatement().setInt(1, id);
+        shard.markSeatsReleasedStatement().setInt(2, id);
+        if (shard.markSeatsReleasedStatement().executeUpdate() > 0) {
+          releaseSeats(fid1, fid2, 1);
+        }
+        commitStep();
+      } catch (SQLException e) {
+        rollback();
+        throw e;
+      }
+
+      useShard(home);
+      shard.removeSeatReleaseStatement().clearParameters();
+      shard.removeSeatReleaseStatement().setInt(1, id);
+      shard.removeSeatReleaseStatement().executeUpdate();
+      commitStep();
+    } catch (SQLException e) {
+      useShard(home);
+      if (!conn.getAutoCommit()) {
+        rollback();
+      }
+      throw e;
+    }
+
+    // The release is gone, so the seat can no longer be given back again
+    shards[0].unmarkSeatsReleasedStatement().clearParameters();
+    shards[0].unmarkSeatsReleasedStatement().setInt(1, id);
+    shards[0].unmarkSeatsReleasedStatement().executeUpdate();
+    return true;
+  }
+
+  /**
+   * Settle what bookings and cancels on other shards left unsettled in the seat counters of the
+   * first shard when they failed halfway: seat releases still pending on any shard, and seat claims
+   * older than flightapp.seat_claim_grace_seconds. Run by the {@link HoldSweeper}.
+   *
+   * @param batchSize maximum number of releases per shard and of claims to settle
+   *
+   * @return the number of releases and claims settled
+   */
+  public int reconcileSeats(int batchSize) throws SQLException {
+    int settled = 0;
+    for (int i = 1; i < shards.length; i++) {
+      List<Integer> releases = new ArrayList<>();
+      shards[i].pendingSeatReleasesStatement().clearParameters();
+      shards[i].pendingSeatReleasesStatement().setInt(1, batchSize);
+      try (ResultSet rs = shards[i].pendingSeatReleasesStatement().executeQuery()) {
+        while (rs.next()) {
+          releases.add(rs.getInt("id"));
+        }
+      }
+      for (int id : releases) {
+        if (applySeatRelease(shards[i], id)) {
+          settled++;
+        }
+      }
+    }
+
+    if (shards.length > 1) {
+      List<int[]> claims = new ArrayList<>();
+      List<String> users = new ArrayList<>();
+      shards[0].staleClaimsStatement().clearParameters();
+      shards[0].staleClaimsStatement().setInt(1, batchSize);
+      shards[0].staleClaimsStatement().setInt(2, SEAT_CLAIM_GRACE_SECONDS);
+      try (ResultSet rs = shards[0].staleClaimsStatement().executeQuery()) {
+        while (rs.next()) {
+          claims.add(new int[] { rs.getInt("id"), rs.getInt("date") });
+          users.add(rs.getString("username"));
+        }
+      }
+      for (int i = 0; i < claims.size(); i++) {
+        resolveClaim(claims.get(i)[0], users.get(i), claims.get(i)[1]);
+        settled++;
+      }
+    }
+    return settled;
+  }
+
+  /**
+   * Take a block of reservation IDs unique across all shards from the counter of the first shard, in
+   * the current transaction
+   *
+   * @return the first ID of the block
+   */
+  private int nextReservationIds(int count) throws SQLException {
+    shards[0].nextReservationIdsStatement().clearParameters();
+    shards[0].nextReservationIdsStatement().setInt(1, count);
+    try (ResultSet idResultSet = shards[0].nextReservationIdsStatement().executeQuery()) {
+      idResultSet.next();
+      return idResultSet.getInt("next_id");
+    }
+  }
+
+  /**
+   * Take seats on every flight of the itinerary in the current transaction on the first shard.
+   * Flights are taken in fid order and the slots of a flight in slot order, so concurrent bookings
+   * and cancels of the same flights always wait on each other in the same order.
+   *
+   * @return false if a flight has fewer seats left
+   */
+  private boolean takeSeats(Itinerary itinerary, int seats) throws SQLException {
+    Flight[] flights = itinerary.flights.clone();
+    Arrays.sort(flights, Comparator.comparingInt(f -> f.fid));
+    for (Flight f : flights) {
+      if (!takeSeats(f, seats)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Take seats of a flight from its escrow slots in the current transaction.
+   *
+   * A booking first tries one slot at random, which only locks that slot's row, so concurrent
+   * bookings of a hot flight mostly take seats without waiting on each other. A booking that misses
+   * holds no lock on the flight, and only then locks all its slots in slot order; the seats are taken
+   * from the fullest slots, and half of what the fullest slot has left moves to the drained one so
+   * later bookings landing on it succeed at once again. The slots must have been created by
+   * {@link #seedSeats}.
+   *
+   * @return false if the flight has fewer free seats in all its slots together
+   */
+  private boolean takeSeats(Flight flight, int seats) throws SQLException {
+    int slot = ThreadLocalRandom.current().nextInt(SEAT_SLOTS);
+    if (takeFromSlot(flight.fid, slot, seats)) {
+      return true;
+    }
+
+    // The slot is drained, or the flight has fewer slots
+    List<int[]> slots = flightSeats(flight.fid);
+    if (slots.isEmpty()) {
+      // The slots were deleted since they were seeded, seed them again on the next booking
+      seededFlights.getOrDefault(database(), Collections.emptySet())
+          .remove(flight.fid);
+      throw new SQLException("Flight " + flight.fid + " has no seat slots");
+    }
+    int free = 0;
+    for (int[] s : slots) {
+      free += s[1];
+    }
+    if (free < seats) {
+      return false;
+    }
+
+    // Take from the fullest slots first
+    List<int[]> fullestFirst = new ArrayList<>(slots);
+    fullestFirst.sort((a, b) -> Integer.compare(b[1], a[1]));
+    int needed = seats;
+    for (int[] s : fullestFirst) {
+      int take = Math.min(needed, s[1]);
+      if (take > 0) {
+        if (!takeFromSlot(flight.fid, s[0], take)) {
+          throw new SQLException("Slot " + s[0] + " of flight " + flight.fid + " changed while locked");
+        }
+        s[1] -= take;
+        needed -= take;
+      }
+    }
+
+    // Rebalance into the drained slot, if the flight has it
+    int[] drained = null;
+    int[] fullest = slots.get(0);
+    for (int[] s : slots) {
+      if (s[0] == slot) {
+        drained = s;
+      }
+      if (s[1] > fullest[1]) {
+        fullest = s;
+      }
+    }
+    int move = fullest[1] / 2;
+    if (drained != null && drained != fullest && move > 0) {
+      if (!takeFromSlot(flight.fid, fullest[0], move) || !giveToSlot(flight.fid, drained[0], move)) {
+        throw new SQLException("Slots of flight " + flight.fid + " changed while locked");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read and lock the slots of a flight as (slot, free) pairs, in slot order
+   */
+  private List<int[]> flightSeats(int fid) throws SQLException {
+    List<int[]> slots = new ArrayList<>();
+    shards[0].getFlightSeatsStatement().clearParameters();
+    shards[0].getFlightSeatsStatement().setInt(1, fid);
+    try (ResultSet rs = shards[0].getFlightSeatsStatement().executeQuery()) {
+      while (rs.next()) {
+        slots.add(new int[] { rs.getInt("slot"), rs.getInt("free") });
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * Create the seat slots of the flights of the itinerary that have none yet, splitting the
+   * capacity evenly into them.
+   *
+   * Each flight is seeded in a short transaction of its own on the first shard before the booking
+   * starts. Reading the slots under an update lock makes a second booking seeding the same flight
+   * wait and then find the slots, rather than insert them twice. Flights seeded once are remembered
+   * per database, clearTables refills their slots instead of deleting them.
+   */
+  private void seedSeats(Itinerary itinerary) throws SQLException {
+    Set<Integer> seeded = seededFlights.computeIfAbsent(database(),
+        database -> ConcurrentHashMap.newKeySet());
+    for (Flight flight : itinerary.flights) {
+      if (seeded.contains(flight.fid)) {
+        continue;
+      }
+      useShard(shards[0]);
+      conn.setAutoCommit(false);
+      try {
+        if (flightSeats(flight.fid).isEmpty()) {
+          PreparedStatement seed = shard.seedFlightSeatsStatement();
+          for (int slot = 0; slot < SEAT_SLOTS; slot++) {
+            seed.clearParameters();
+            seed.setInt(1, flight.fid);
+            seed.setInt(2, slot);
+            seed.setInt(3,
+                flight.capacity / SEAT_SLOTS + (slot < flight.capacity % SEAT_SLOTS ? 1 : 0));
+            seed.executeUpdate();
+          }
+        }
+        commitStep();
+      } catch (SQLException e) {
+        rollback();
+        throw e;
+      }
+      seeded.add(flight.fid);
+    }
+  }
+
+  /**
+   * Take seats from a slot of the first shard
+   *
+   * @return false if the slot has fewer free seats
+   */
+  private boolean takeFromSlot(int fid, int slot, int seats) throws SQLException {
+    PreparedStatement reserve = shards[0].reserveSeatsStatement();
+    reserve.clearParameters();
+    reserve.setInt(1, seats);
+    reserve.setInt(2, fid);
+    reserve.setInt(3, slot);
+    reserve.setInt(4, seats);
+    return reserve.executeUpdate() > 0;
+  }
+
+  /**
+   * Give seats back to a slot of the first shard
+   *
+   * @return false if the flight has no such slot
+   */
+  private boolean giveToSlot(int fid, int slot, int seats) throws SQLException {
+    PreparedStatement release = shards[0].releaseSeatsStatement();
+    release.clearParameters();
+    release.setInt(1, seats);
+    release.setInt(2, fid);
+    release.setInt(3, slot);
+    return release.executeUpdate() > 0;
+  }
+
+  /**
+   * Give back seats of the flights to a random slot of each in the counters of the first shard, in
+   * the current transaction if it runs there. Flights are released in fid order like
+   * {@link #takeSeats(Itinerary, int)} takes them. Seats go to the first slot if the random one does
+   * not exist because the flight was seeded with fewer slots.
+   *
+   * @param fid2 0 if there is no second flight
+   */
+  private void releaseSeats(int fid1, int fid2, int seats) throws SQLException {
+    SortedMap<Integer, Integer> seatsByFlight = new TreeMap<>();
+    addSeats(seatsByFlight, fid1, fid2, seats);
+    releaseSeats(seatsByFlight);
+  }
+
+  /**
+   * Give back the given number of seats of each flight, in fid order
+   */
+  private void releaseSeats(SortedMap<Integer, Integer> seatsByFlight) throws SQLException {
+    for (Map.Entry<Integer, Integer> flight : seatsByFlight.entrySet()) {
+      int fid = flight.getKey();
+      if (!giveToSlot(fid, ThreadLocalRandom.current().nextInt(SEAT_SLOTS), flight.getValue())) {
+        giveToSlot(fid, 0, flight.getValue());
+      }
+    }
+  }
+
+  // Count seats of the flights to release, 0 is no second flight
+  private static void addSeats(Map<Integer, Integer> seatsByFlight, int fid1, int fid2, int seats) {
+    seatsByFlight.merge(fid1, seats, Integer::sum);
+    if (fid2 != 0) {
+      seatsByFlight.merge(fid2, seats, Integer::sum);
+    }
+  }
+
+  /**
+   * Commit the current transaction and return to autocommit mode
+   */
+  private void commit() throws SQLException {
+    commitStep();
+    succeeded = true;
+  }
+
+  /**
+   * Commit a transaction that is only a step of the command, e.g. seeding seat slots before a
+   * booking, without counting the command as succeeded
+   */
+  private void commitStep() throws SQLException {
+    QueryEvents.TransactionEvent event = new QueryEvents.TransactionEvent();
+    event.begin();
+    long start = System.nanoTime();
+    conn.commit();
+    Metrics.recordCommit(System.nanoTime() - start);
+    event.end();
+    if (event.shouldCommit()) {
+      event.command = session.command;
+      event.user = session.user;
+      event.committed = true;
+      event.commit();
+    }
+    conn.setAutoCommit(true);
+  }
+
+  /**
+   * Roll back the current transaction and return to autocommit mode
+   */
+  private void rollback() throws SQLException {
+    QueryEvents.TransactionEvent event = new QueryEvents.TransactionEvent();
+    event.begin();
+    long start = System.nanoTime();
+    conn.rollback();
+    Metrics.recordRollback(System.nanoTime() - start);
+    event.end();
+    if (event.shouldCommit()) {
+      event.command = session.command;
+      event.user = session.user;
+      event.committed = false;
+      event.commit();
+    }
+    conn.setAutoCommit(true);
+  }
+
+  /**
+   * Start timing a command. Calls nested in the same command, e.g. retries after a deadlock, are
+   * timed as part of the outermost call.
+   */
+  private void beginCommand(String name) {
+    if (commandDepth++ == 0) {
+      command = name;
+      commandStart = System.nanoTime();
+      succeeded = false;
+      session.command = name;
+      session.user = username;
+    }
+  }
+
+  /**
+   * Stop timing the current command. A command that did not succeed is counted as failed.
+   */
+  private void endCommand() {
+    if (--commandDepth == 0) {
+      Metrics.command(command).record(System.nanoTime() - commandStart, succeeded);
+    }
+  }
+
+  /**
+   * Return true if the transaction failed because of a deadlock and should be retried
+   */
+  private boolean retryOnDeadLock(SQLException ex) {
+    if (!isDeadLock(ex)) {
+      return false;
+    }
+    Metrics.command(command).deadlockRetries.increment();
+    QueryEvents.DeadlockRetryEvent event = new QueryEvents.DeadlockRetryEvent();
+    if (event.shouldCommit()) {
+      event.command = session.command;
+      event.user = session.user;
+      event.commit();
+    }
+    return true;
+  }
+
+  private static boolean isDeadLock(SQLException ex) {
+    return ex.getErrorCode() == 1205;
+  }
+
+  /**
+   * The connection to one shard, or to the read replica of the first one, and the statements of the
+   * session on it. Flights are only on the first shard and its replica, the seat and reservation ID
+   * counters only on the first shard itself.
+   */
+  private class Shard {
+    final int index;
+    final ConnectionPool.Pooled pooled;
+    final Connection conn;
+    final boolean readOnly;
+
+    // Statements by name, instrumented for this session
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    Shard(int index, ConnectionPool.Pooled pooled, boolean readOnly) {
+      this.index = index;
+      this.pooled = pooled;
+      this.conn = pooled.conn;
+      this.readOnly = readOnly;
+    }
+
+    /**
+     * Return the statement, preparing it on first use unless the connection already has it
+     */
+    PreparedStatement statement(String name, String sql) throws SQLException {
+      PreparedStatement statement = statements.get(name);
+      if (statement == null) {
+        statement = Metrics.instrument(pooled.prepare(sql), name, session);
+        statements.put(name, statement);
+      }
+      return statement;
+    }
+
+    /**
+     * Prepare every statement that can run on this shard
+     */
+    void prepareAll() throws SQLException {
+      tranCountStatement();
+      clearUsersStatement();
+      clearReservationsStatement();
+      clearReservationsArchiveStatement();
+      createUserStatement();
+      checkUserStatement();
+      loginUserStatement();
+      f1CapacityStatement();
+      f2CapacityStatement();
+      bookUserDayStatement();
+      freeUserDayStatement();
+      freeDayStatement();
+      getReservationIDStatement();
+      bookFlightStatement();
+      getReservationPriceStatement();
+      getUserBalanceStatement();
+      updatePaidStatusStatement();
+      updateUserBalanceStatement();
+      getUserReservationStatement();
+      getReservationCancelStatement();
+      updateCancelStatusStatement();
+      expireHoldsStatement();
+      archiveDayCountStatement();
+      archiveDayCopyStatement();
+      archiveDayDeleteStatement();
+      archiveDayMarkStatement();
+      archivedDayStatement();
+      clearArchivedDaysStatement();
+      claimBookedStatement();
+      voidClaimStatement();
+      claimVoidedStatement();
+      addSeatReleaseStatement();
+      getSeatReleaseStatement();
+      removeSeatReleaseStatement();
+      pendingSeatReleasesStatement();
+      clearSeatReleasesStatement();
+      clearVoidedClaimsStatement();
+      if (index == 0) {
+        directFlightStatement();
+        directAndIndirectFlightStatement();
+        dayFlightsStatement();
+        getFlightInfoStatement();
+      }
+      if (index == 0 && !readOnly) {
+        resetFlightSeatsStatement();
+        clearReservationIdsStatement();
+        seedFlightSeatsStatement();
+        getFlightSeatsStatement();
+        reserveSeatsStatement();
+        releaseSeatsStatement();
+        nextReservationIdsStatement();
+        claimSeatsStatement();
+        settleClaimStatement();
+        staleClaimsStatement();
+        markSeatsReleasedStatement();
+        unmarkSeatsReleasedStatement();
+        clearSeatClaimsStatement();
+        clearReleasedSeatsStatement();
+        joinWaitlistStatement();
+        getWaitlistStatement();
+        leaveWaitlistStatement();
+        clearWaitlistStatement();
+      }
+    }
+
+    PreparedStatement tranCountStatement() throws SQLException {
+      return statement("TRANCOUNT", TRANCOUNT_SQL);
+    }
+
+    PreparedStatement clearUsersStatement() throws SQLException {
+      return statement("CLEAR_USERS", CLEAR_USERS_SQL);
+    }
+
+    PreparedStatement clearReservationsStatement() throws SQLException {
+      return statement("CLEAR_RESERVATIONS", CLEAR_RESERVATIONS_SQL);
+    }
+
+    PreparedStatement clearReservationsArchiveStatement() throws SQLException {
+      return statement("CLEAR_RESERVATIONS_ARCHIVE", CLEAR_RESERVATIONS_ARCHIVE_SQL);
+    }
+
+    PreparedStatement createUserStatement() throws SQLException {
+      return statement("CREATE_USER", CREATE_USER_SQL);
+    }
+
+    PreparedStatement checkUserStatement() throws SQLException {
+      return statement("CHECK_USER", CHECK_USER_SQL);
+    }
+
+    PreparedStatement loginUserStatement() throws SQLException {
+      return statement("LOGIN_USER", LOGIN_USER_SQL);
+    }
+
+    PreparedStatement f1CapacityStatement() throws SQLException {
+      return statement("F1_CAPACITY", F1_CAPACITY_SQL);
+    }
+
+    PreparedStatement f2CapacityStatement() throws SQLException {
+      return statement("F2_CAPACITY", F2_CAPACITY_SQL);
+    }
+
+    PreparedStatement bookUserDayStatement() throws SQLException {
+      return statement("BOOK_USER_DAY",
+          HOLD_TTL_SECONDS > 0 ? BOOK_USER_DAY_HOLDS_SQL : BOOK_USER_DAY_SQL);
+    }
+
+    PreparedStatement freeUserDayStatement() throws SQLException {
+      return statement("FREE_USER_DAY", FREE_USER_DAY_SQL);
+    }
+
+    PreparedStatement freeDayStatement() throws SQLException {
+      return statement("FREE_DAY", FREE_DAY_SQL);
+    }
+
+    PreparedStatement getReservationIDStatement() throws SQLException {
+      return statement("GET_RESERVATION_ID", GET_RESERVATION_ID_SQL);
+    }
+
+    PreparedStatement bookFlightStatement() throws SQLException {
+      return statement("BOOK_FLIGHT", BOOK_FLIGHT_SQL);
+    }
+
+    PreparedStatement getReservationPriceStatement() throws SQLException {
+      return statement("GET_RESERVATION_PRICE", GET_RESERVATION_PRICE_SQL);
+    }
+
+    PreparedStatement getUserBalanceStatement() throws SQLException {
+      return statement("GET_USER_BALANCE", GET_USER_BALANCE_SQL);
+    }
+
+    PreparedStatement updatePaidStatusStatement() throws SQLException {
+      return statement("UPDATE_PAID_STATUS", UPDATE_PAID_STATUS_SQL);
+    }
+
+    PreparedStatement updateUserBalanceStatement() throws SQLException {
+      return statement("UPDATE_USER_BALANCE", UPDATE_USER_BALANCE_SQL);
+    }
+
+    PreparedStatement getUserReservationStatement() throws SQLException {
+      return statement("GET_USER_RESERVATION", GET_USER_RESERVATION_SQL);
+    }
+
+    PreparedStatement getReservationCancelStatement() throws SQLException {
+      return statement("GET_RESERVATION_CANCEL", GET_RESERVATION_CANCEL_SQL);
+    }
+
+    PreparedStatement updateCancelStatusStatement() throws SQLException {
+      return statement("UPDATE_CANCEL_STATUS", UPDATE_CANCEL_STATUS_SQL);
+    }
+
+    PreparedStatement expireHoldsStatement() throws SQLException {
+      return statement("EXPIRE_HOLDS", EXPIRE_HOLDS_SQL);
+    }
+
+    PreparedStatement archiveDayCountStatement() throws SQLException {
+      return statement("ARCHIVE_DAY_COUNT", ARCHIVE_DAY_COUNT_SQL);
+    }
+
+    PreparedStatement archiveDayCopyStatement() throws SQLException {
+      return statement("ARCHIVE_DAY_COPY", ARCHIVE_DAY_COPY_SQL);
+    }
+
+    PreparedStatement archiveDayDeleteStatement() throws SQLException {
+      return statement("ARCHIVE_DAY_DELETE", ARCHIVE_DAY_DELETE_SQL);
+    }
+
+    PreparedStatement archiveDayMarkStatement() throws SQLException {
+      return statement("ARCHIVE_DAY_MARK", ARCHIVE_DAY_MARK_SQL);
+    }
+
+    PreparedStatement archivedDayStatement() throws SQLException {
+      return statement("ARCHIVED_DAY", ARCHIVED_DAY_SQL);
+    }
+
+    PreparedStatement clearArchivedDaysStatement() throws SQLException {
+      return statement("CLEAR_ARCHIVED_DAYS", CLEAR_ARCHIVED_DAYS_SQL);
+    }
+
+    PreparedStatement directFlightStatement() throws SQLException {
+      return statement("DIRECT_FLIGHT", DIRECT_FLIGHT_SQL);
+    }
+
+    PreparedStatement directAndIndirectFlightStatement() throws SQLException {
+      return statement("DIRECT_AND_INDIRECT_FLIGHT", DIRECT_AND_INDIRECT_FLIGHT_SQL);
+    }
+
+    PreparedStatement dayFlightsStatement() throws SQLException {
+      return statement("DAY_FLIGHTS", DAY_FLIGHTS_SQL);
+    }
+
+    PreparedStatement getFlightInfoStatement() throws SQLException {
+      return statement("GET_FLIGHT_INFO", GET_FLIGHT_INFO_SQL);
+    }
+
+    PreparedStatement resetFlightSeatsStatement() throws SQLException {
+      return statement("RESET_FLIGHT_SEATS", RESET_FLIGHT_SEATS_SQL);
+    }
+
+    PreparedStatement clearReservationIdsStatement() throws SQLException {
+      return statement("CLEAR_RESERVATION_IDS", CLEAR_RESERVATION_IDS_SQL);
+    }
+
+    PreparedStatement seedFlightSeatsStatement() throws SQLException {
+      return statement("SEED_FLIGHT_SEATS", SEED_FLIGHT_SEATS_SQL);
+    }
+
+    PreparedStatement getFlightSeatsStatement() throws SQLException {
+      return statement("GET_FLIGHT_SEATS", GET_FLIGHT_SEATS_SQL);
+    }
+
+    PreparedStatement reserveSeatsStatement() throws SQLException {
+      return statement("RESERVE_SEATS", RESERVE_SEATS_SQL);
+    }
+
+    PreparedStatement releaseSeatsStatement() throws SQLException {
+      return statement("RELEASE_SEATS", RELEASE_SEATS_SQL);
+    }
+
+    PreparedStatement nextReservationIdsStatement() throws SQLException {
+      return statement("NEXT_RESERVATION_IDS", NEXT_RESERVATION_IDS_SQL);
+    }
+
+    PreparedStatement claimSeatsStatement() throws SQLException {
+      return statement("CLAIM_SEATS", CLAIM_SEATS_SQL);
+    }
+
+    PreparedStatement settleClaimStatement() throws SQLException {
+      return statement("SETTLE_CLAIM", SETTLE_CLAIM_SQL);
+    }
+
+    PreparedStatement staleClaimsStatement() throws SQLException {
+      return statement("STALE_CLAIMS", STALE_CLAIMS_SQL);
+    }
+
+    PreparedStatement claimBookedStatement() throws SQLException {
+      return statement("CLAIM_BOOKED", CLAIM_BOOKED_SQL);
+    }
+
+    PreparedStatement voidClaimStatement() throws SQLException {
+      return statement("VOID_CLAIM", VOID_CLAIM_SQL);
+    }
+
+    PreparedStatement claimVoidedStatement() throws SQLException {
+      return statement("CLAIM_VOIDED", CLAIM_VOIDED_SQL);
+    }
+
+    PreparedStatement addSeatReleaseStatement() throws SQLException {
+      return statement("ADD_SEAT_RELEASE", ADD_SEAT_RELEASE_SQL);
+    }
+
+    PreparedStatement getSeatReleaseStatement() throws SQLException {
+      return statement("GET_SEAT_RELEASE", GET_SEAT_RELEASE_SQL);
+    }
+
+    PreparedStatement removeSeatReleaseStatement() throws SQLException {
+      return statement("REMOVE_SEAT_RELEASE", REMOVE_SEAT_RELEASE_SQL);
+    }
+
+    PreparedStatement pendingSeatReleasesStatement() throws SQLException {
+      return statement("PENDING_SEAT_RELEASES", PENDING_SEAT_RELEASES_SQL);
+    }
+
+    PreparedStatement markSeatsReleasedStatement() throws SQLException {
+      return statement("MARK_SEATS_RELEASED", MARK_SEATS_RELEASED_SQL);
+    }
+
+    PreparedStatement unmarkSeatsReleasedStatement() throws SQLException {
+      return statement("UNMARK_SEATS_RELEASED", UNMARK_SEATS_RELEASED_SQL);
+    }
+
+    PreparedStatement clearSeatClaimsStatement() throws SQLException {
+      return statement("CLEAR_SEAT_CLAIMS", CLEAR_SEAT_CLAIMS_SQL);
+    }
+
+    PreparedStatement clearReleasedSeatsStatement() throws SQLException {
+      return statement("CLEAR_RELEASED_SEATS", CLEAR_RELEASED_SEATS_SQL);
+    }
+
+    PreparedStatement clearSeatReleasesStatement() throws SQLException {
+      return statement("CLEAR_SEAT_RELEASES", CLEAR_SEAT_RELEASES_SQL);
+    }
+
+    PreparedStatement clearVoidedClaimsStatement() throws SQLException {
+      return statement("CLEAR_VOIDED_CLAIMS", CLEAR_VOIDED_CLAIMS_SQL);
+    }
+
+    PreparedStatement joinWaitlistStatement() throws SQLException {
+      return statement("JOIN_WAITLIST", JOIN_WAITLIST_SQL);
+    }
+
+    PreparedStatement getWaitlistStatement() throws SQLException {
+      return statement("GET_WAITLIST", GET_WAITLIST_SQL);
+    }
+
+    PreparedStatement leaveWaitlistStatement() throws SQLException {
+      return statement("LEAVE_WAITLIST", LEAVE_WAITLIST_SQL);
+    }
+
+    PreparedStatement clearWaitlistStatement() throws SQLException {
+      return statement("CLEAR_WAITLIST", CLEAR_WAITLIST_SQL);
+    }
+  }
+
+  /**
+   * A class to store flight information.
+   */
+  class Flight {
+    public int fid;
+    public int dayOfMonth;
+    public String carrierId;
+    public String flightNum;
+    public String originCity;
+    public String destCity;
+    public int time;
+    public int capacity;
+    public int price;
+
+    public Flight(int fid, int dayOfMonth, String carrierId, String flightNum,
+                  String originCity, String destCity, int time, int capacity, int price) {
+      this.fid = fid;
+      this.dayOfMonth = dayOfMonth;
+      this.carrierId = carrierId;
+      this.flightNum = flightNum;
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.time = time;
+      this.capacity = capacity;
+      this.price = price;
+    }
+
+    @Override
+    public String toString() {
+      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
+          + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
+          + " Capacity: " + capacity + " Price: " + price;
+    }
+  }
+
+  class Itinerary implements Comparable<Itinerary> {
+    public Flight f1;
+    public Flight f2;
+    public Flight[] flights;
+    public int totalTime;
+    public int count;
+
+    // Direct flight
+    public Itinerary(Flight f1) {
+      this.f1 = f1;
+      this.flights = new Flight[] { f1 };
+      this.totalTime = f1.time;
+      this.count = 1;
+    }
+
+    // Indirect flight
+    public Itinerary(Flight f1, Flight f2) {
+      this.f1 = f1;
+      this.f2 = f2;
+      this.flights = new Flight[] { f1, f2 };
+      this.totalTime = f1.time + f2.time;
+      this.count = 2;
+    }
+
+    // Flight with any number of legs
+    public Itinerary(List<Flight> legs) {
+      this.flights = legs.toArray(new Flight[0]);
+      this.f1 = flights[0];
+      this.f2 = flights.length > 1 ? flights[1] : null;
+      for (Flight f : flights) {
+        this.totalTime += f.time;
+      }
+      this.count = flights.length;
     }
 
-    // Compare total time and fid value of itineraries
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (Flight f : flights) {
+        sb.append(f.toString()).append("\n");
+      }
+      return sb.toString();
+    }
+
+    // Compare total time and then the fids of the flights both itineraries have
     @Override
     public int compareTo(Itinerary o) {
-      int time = this.totalTime - o.totalTime;
-      if (time != 0) {
-        return time;
-      } else {
-        int fid1 = this.f1.fid - o.f1.fid;
-        if (fid1 == 0 && this.f2 != null && o.f2 != null) {
-          return this.f2.fid - o.f2.fid;
+      return compareTo(o, SearchOptions.Rank.TIME);
+    }
+
+    // Total cost of the flights under the rank
+    public int cost(SearchOptions.Rank rank) {
+      int cost = 0;
+      for (Flight f : flights) {
+        cost += rank.cost(f.time, f.price);
+      }
+      return cost;
+    }
+
+    // Compare total cost under the rank and then the fids of the flights both itineraries have
+    public int compareTo(Itinerary o, SearchOptions.Rank rank) {
+      int cost = Integer.compare(this.cost(rank), o.cost(rank));
+      if (cost != 0) {
+        return cost;
+      }
+      for (int i = 0; i < this.count && i < o.count; i++) {
+        int fid = this.flights[i].fid - o.flights[i].fid;
+        if (fid != 0) {
+          return fid;
         }
-        return fid1;
       }
+      return 0;
     }
   }
 }
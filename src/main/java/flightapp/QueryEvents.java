@@ -0,0 +1,81 @@
+package flightapp;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events emitted by {@link Query}.
+ *
+ * Events are only filled in and committed while a recording with the event enabled is running,
+ * otherwise they cost a timestamp and a branch. Record with e.g.
+ * {@code -XX:StartFlightRecording:filename=flightapp.jfr} and look for the "FlightApp" category.
+ */
+public class QueryEvents {
+
+  /**
+   * What a session is currently doing, attached to every event it emits.
+   */
+  static class Session {
+    volatile String command;
+    volatile String user;
+  }
+
+  @Name("flightapp.Statement")
+  @Label("Statement")
+  @Description("Execution of one prepared statement")
+  @Category({ "FlightApp", "Query" })
+  static class StatementEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+
+    @Label("Statement")
+    String statement;
+
+    @Label("Succeeded")
+    boolean succeeded;
+  }
+
+  @Name("flightapp.Transaction")
+  @Label("Transaction End")
+  @Description("Commit or rollback of a transaction")
+  @Category({ "FlightApp", "Query" })
+  static class TransactionEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+
+    @Label("Committed")
+    boolean committed;
+  }
+
+  @Name("flightapp.DeadlockRetry")
+  @Label("Deadlock Retry")
+  @Description("A transaction was chosen as deadlock victim and is retried")
+  @Category({ "FlightApp", "Query" })
+  static class DeadlockRetryEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+  }
+
+  @Name("flightapp.PasswordHash")
+  @Label("Password Hash")
+  @Description("PBKDF2 derivation of a password hash")
+  @Category({ "FlightApp", "Query" })
+  static class PasswordHashEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("User")
+    String user;
+
+    @Label("Iterations")
+    int iterations;
+  }
+}
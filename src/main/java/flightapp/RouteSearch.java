@@ -0,0 +1,192 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Best-first search for the cheapest multi-leg routes between two cities of one day, where the cost
+ * of a route is the sum of the costs of its flights under a {@link SearchOptions.Rank}.
+ *
+ * Routes are found in order of total cost with A*: the remaining cost of a partial route is
+ * estimated by the cheapest way from its last city to the destination, computed once per query by a
+ * backwards Dijkstra over the day's flights. Partial routes are pruned if they revisit a city, if
+ * the destination cannot be reached from their last city, or if it cannot be reached within the
+ * remaining number of legs or the maximum total time. A work budget caps the number of partial
+ * routes created per query.
+ */
+public class RouteSearch {
+  // Default budget of partial routes per query, read from flightapp.route_search_budget
+  public static final int DEFAULT_BUDGET = Integer.getInteger("flightapp.route_search_budget", 200000);
+
+  private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  /**
+   * A route as a chain of legs
+   */
+  private static class Node {
+    final Node parent;
+    final int flight;
+    final int city;
+    final int legs;
+    final int time;
+    final int cost;
+    final long estimate;
+
+    Node(Node parent, int flight, int city, int legs, int time, int cost, long estimate) {
+      this.parent = parent;
+      this.flight = flight;
+      this.city = city;
+      this.legs = legs;
+      this.time = time;
+      this.cost = cost;
+      this.estimate = estimate;
+    }
+
+    boolean visits(int c) {
+      for (Node n = this; n != null; n = n.parent) {
+        if (n.city == c) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    int[] flights() {
+      int[] flights = new int[legs];
+      for (Node n = this; n.parent != null; n = n.parent) {
+        flights[n.legs - 1] = n.flight;
+      }
+      return flights;
+    }
+
+    int[] fids(FlightStore.Day day) {
+      int[] fids = flights();
+      for (int i = 0; i < fids.length; i++) {
+        fids[i] = day.fid[fids[i]];
+      }
+      return fids;
+    }
+  }
+
+  /**
+   * Return the k cheapest routes under the ranking with minLegs to maxLegs flights that do not visit
+   * a city twice and whose total time is within [minTime, maxTime].
+   *
+   * Routes are ordered by total cost, then by the fids of their flights in order, then by number of
+   * flights. If the work budget runs out, the cheapest routes found until then are returned, which
+   * are still the k' cheapest ones for some k' &lt; k.
+   *
+   * @return the flights of every route as indexes into the arrays of the day
+   */
+  public static List<int[]> search(FlightStore.Day day, FlightStore.Ranking ranking, int origin,
+      int dest, int minLegs, int maxLegs, int minTime, int maxTime, int k, int budget) {
+    List<int[]> routes = new ArrayList<>();
+    if (origin < 0 || dest < 0 || origin == dest || k <= 0) {
+      return routes;
+    }
+
+    // Cheapest cost, fastest time and fewest legs from every city to the destination
+    int[] remaining = cheapestToDestination(day, ranking.cost, dest);
+    int[] remainingTime = ranking.rank == SearchOptions.Rank.TIME ? remaining
+        : cheapestToDestination(day, day.time, dest);
+    int[] legsLeft = fewestLegsToDestination(day, dest, maxLegs);
+    if (remaining[origin] == UNREACHABLE || legsLeft[origin] > maxLegs
+        || remainingTime[origin] > maxTime) {
+      return routes;
+    }
+
+    List<Node> found = new ArrayList<>();
+    PriorityQueue<Node> open = new PriorityQueue<>(Comparator.comparingLong(n -> n.estimate));
+    open.add(new Node(null, -1, origin, 0, 0, 0, remaining[origin]));
+    int work = 1;
+    while (!open.isEmpty()) {
+      Node node = open.poll();
+
+      // Routes arrive in order of total cost, keep going until every route tied with the k-th one
+      // is collected
+      if (found.size() >= k && node.estimate > found.get(k - 1).cost) {
+        break;
+      }
+      if (node.city == dest) {
+        if (node.legs >= minLegs && node.time >= minTime) {
+          found.add(node);
+        }
+        continue;
+      }
+
+      for (int i = day.outStart(node.city); i < day.outEnd(node.city); i++) {
+        int flight = ranking.outbound(i);
+        int next = day.dest[flight];
+        if (remaining[next] == UNREACHABLE || legsLeft[next] > maxLegs - node.legs - 1
+            || node.visits(next)) {
+          continue;
+        }
+        int time = node.time + day.time[flight];
+        if ((long) time + remainingTime[next] > maxTime) {
+          continue;
+        }
+        int cost = node.cost + ranking.cost[flight];
+        open.add(new Node(node, flight, next, node.legs + 1, time, cost, (long) cost + remaining[next]));
+        work++;
+      }
+      if (work > budget) {
+        break;
+      }
+    }
+
+    found.sort((a, b) -> a.cost != b.cost ? Integer.compare(a.cost, b.cost)
+        : Arrays.compare(a.fids(day), b.fids(day)));
+    for (int i = 0; i < found.size() && i < k; i++) {
+      routes.add(found.get(i).flights());
+    }
+    return routes;
+  }
+
+  // Backwards Dijkstra from the destination over the arriving flights of every city
+  private static int[] cheapestToDestination(FlightStore.Day day, int[] cost, int dest) {
+    int[] best = new int[day.cityCount()];
+    Arrays.fill(best, UNREACHABLE);
+    best[dest] = 0;
+    PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(e -> e[0]));
+    queue.add(new long[] { 0, dest });
+    while (!queue.isEmpty()) {
+      long[] entry = queue.poll();
+      int city = (int) entry[1];
+      if (entry[0] > best[city]) {
+        continue;
+      }
+      for (int i = day.inStart(city); i < day.inEnd(city); i++) {
+        int flight = day.inbound(i);
+        int from = day.origin[flight];
+        int c = best[city] + cost[flight];
+        if (c < best[from]) {
+          best[from] = c;
+          queue.add(new long[] { c, from });
+        }
+      }
+    }
+    return best;
+  }
+
+  // Backwards breadth-first search from the destination, cut at maxLegs
+  private static int[] fewestLegsToDestination(FlightStore.Day day, int dest, int maxLegs) {
+    int[] legs = new int[day.cityCount()];
+    Arrays.fill(legs, UNREACHABLE);
+    legs[dest] = 0;
+    int[] frontier = { dest };
+    for (int depth = 1; depth <= maxLegs && frontier.length > 0; depth++) {
+      int[] next = new int[day.cityCount()];
+      int size = 0;
+      for (int city : frontier) {
+        for (int i = day.inStart(city); i < day.inEnd(city); i++) {
+          int from = day.origin[day.inbound(i)];
+          if (legs[from] == UNREACHABLE) {
+            legs[from] = depth;
+            next[size++] = from;
+          }
+        }
+      }
+      frontier = Arrays.copyOf(next, size);
+    }
+    return legs;
+  }
+}
@@ -0,0 +1,121 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Optional constraints of a search, given as extra tokens after the regular search parameters.
+ *
+ * Supported tokens:
+ * <ul>
+ * <li>{@code time=MIN..MAX} only itineraries whose total flight time in minutes is within the
+ * window, either bound may be left out</li>
+ * <li>{@code rank=time|price|best} order the itineraries by total flight time (the default), by
+ * total price, or by total time plus total price weighted by flightapp.price_weight</li>
+ * </ul>
+ */
+public class SearchOptions {
+  // Minutes one unit of price is worth in the best rank
+  private static final int PRICE_WEIGHT = Integer.getInteger("flightapp.price_weight", 1);
+
+  /**
+   * What itineraries are ordered by. Ties are broken by the fids of the flights in order.
+   */
+  public enum Rank {
+    TIME, PRICE, BEST;
+
+    /**
+     * Return the cost of a flight, the cost of an itinerary is the sum over its flights
+     */
+    public int cost(int time, int price) {
+      switch (this) {
+        case PRICE: return price;
+        case BEST: return time + PRICE_WEIGHT * price;
+        default: return time;
+      }
+    }
+  }
+
+  public int maxLegs = 2;
+  public int minTime = 0;
+  public int maxTime = Integer.MAX_VALUE;
+  public Rank rank = Rank.TIME;
+  // Last day of a day range search, 0 searches the given day only
+  public int lastDay = 0;
+
+  public SearchOptions() {
+  }
+
+  public SearchOptions(int maxLegs) {
+    this.maxLegs = maxLegs;
+  }
+
+  /**
+   * Return true if the total flight time is constrained
+   */
+  public boolean hasTimeWindow() {
+    return minTime > 0 || maxTime < Integer.MAX_VALUE;
+  }
+
+  /**
+   * Return true if the search cannot be answered by the SQL lookups, which only return the fastest
+   * itineraries of at most two flights
+   */
+  public boolean needsFlightStore() {
+    return maxLegs > 2 || hasTimeWindow() || rank != Rank.TIME || lastDay != 0;
+  }
+
+  /**
+   * Parse the day token of a search, either a day or a range FIRST..LAST of days
+   *
+   * @return the first day
+   *
+   * @throws NumberFormatException if a day is not a number, or the range is not a range of days of
+   *         the month
+   */
+  public int parseDays(String token) {
+    int range = token.indexOf("..");
+    if (range < 0) {
+      return Integer.parseInt(token);
+    }
+    int firstDay = Integer.parseInt(token.substring(0, range));
+    lastDay = Integer.parseInt(token.substring(range + 2));
+    // Every day of a range is loaded into the flight store
+    if (firstDay < 1 || lastDay > 31 || firstDay > lastDay) {
+      throw new NumberFormatException("Invalid range of days " + token);
+    }
+    return firstDay;
+  }
+
+  /**
+   * Parse the option tokens
+   *
+   * @throws IllegalArgumentException if a token is not a known option
+   */
+  public static SearchOptions parse(int maxLegs, String[] tokens, int from) {
+    SearchOptions options = new SearchOptions(maxLegs);
+    for (int i = from; i < tokens.length; i++) {
+      String[] kv = tokens[i].split("=", 2);
+      if (kv.length == 2 && kv[0].equals("time")) {
+        String[] bounds = kv[1].split("\\.\\.", -1);
+        if (bounds.length != 2) {
+          throw new IllegalArgumentException(tokens[i]);
+        }
+        if (!bounds[0].isEmpty()) {
+          options.minTime = Integer.parseInt(bounds[0]);
+        }
+        if (!bounds[1].isEmpty()) {
+          options.maxTime = Integer.parseInt(bounds[1]);
+        }
+      } else if (kv.length == 2 && kv[0].equals("rank")) {
+        try {
+          options.rank = Rank.valueOf(kv[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(tokens[i]);
+        }
+      } else {
+        throw new IllegalArgumentException(tokens[i]);
+      }
+    }
+    return options;
+  }
+}
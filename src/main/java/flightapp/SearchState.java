@@ -0,0 +1,115 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The itineraries of a session's last search, kept only so that a later book can refer to them.
+ *
+ * An itinerary is stored as its (fid1, fid2) pair and its day, 9 bytes in total; the flights
+ * themselves are looked up again in the shared {@link FlightStore} when booking. If the
+ * flightapp.search_state_idle_seconds system property is set, the state of sessions that have not
+ * used it for that long is dropped by a background sweep, so idle sessions cost no search state.
+ */
+public class SearchState {
+  // Idle time after which the state is dropped, 0 keeps it until the next search
+  static final long IDLE_MILLIS = Long.getLong("flightapp.search_state_idle_seconds", 0) * 1000;
+
+  private static final Set<AtomicReference<SearchState>> sessions = ConcurrentHashMap.newKeySet();
+
+  static {
+    if (IDLE_MILLIS > 0) {
+      ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "flightapp-search-state-sweeper");
+        t.setDaemon(true);
+        return t;
+      });
+      long period = Math.max(1, IDLE_MILLIS / 2);
+      sweeper.scheduleWithFixedDelay(() -> evictIdle(System.currentTimeMillis()), period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private int[] fids = new int[16];
+  private byte[] days = new byte[8];
+  private int count;
+  private volatile long lastUsed = System.currentTimeMillis();
+
+  /**
+   * Append an itinerary
+   *
+   * @param fid2 0 for a direct flight, -1 for an itinerary that cannot be booked
+   */
+  public void add(int fid1, int fid2, int dayOfMonth) {
+    if (2 * count + 2 > fids.length) {
+      fids = Arrays.copyOf(fids, 2 * fids.length);
+      days = Arrays.copyOf(days, 2 * days.length);
+    }
+    fids[2 * count] = fid1;
+    fids[2 * count + 1] = fid2;
+    days[count] = (byte) dayOfMonth;
+    count++;
+  }
+
+  /**
+   * Shrink the arrays to the number of itineraries once the search is complete
+   */
+  public void trim() {
+    fids = Arrays.copyOf(fids, 2 * count);
+    days = Arrays.copyOf(days, count);
+  }
+
+  public int count() {
+    return count;
+  }
+
+  public int fid1(int itinerary) {
+    return fids[2 * itinerary];
+  }
+
+  public int fid2(int itinerary) {
+    return fids[2 * itinerary + 1];
+  }
+
+  public int dayOfMonth(int itinerary) {
+    return days[itinerary];
+  }
+
+  /**
+   * Mark the state as used so it is not dropped as idle
+   */
+  public void touch() {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Make the state held by a session subject to idle eviction
+   */
+  public static void register(AtomicReference<SearchState> session) {
+    if (IDLE_MILLIS > 0) {
+      sessions.add(session);
+    }
+  }
+
+  public static void unregister(AtomicReference<SearchState> session) {
+    sessions.remove(session);
+  }
+
+  /**
+   * Drop the state of every session that did not use it for the idle time
+   *
+   * @return the number of states dropped
+   */
+  static int evictIdle(long now) {
+    int evicted = 0;
+    for (AtomicReference<SearchState> session : sessions) {
+      SearchState state = session.get();
+      // A session storing a new search concurrently keeps it
+      if (state != null && now - state.lastUsed > IDLE_MILLIS && session.compareAndSet(state, null)) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+}
@@ -0,0 +1,116 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs client sessions concurrently, each on its own virtual thread.
+ *
+ * A session blocked on JDBC parks its virtual thread instead of holding a platform thread, so one
+ * machine can drive tens of thousands of sessions. The runner measures wall-clock throughput and
+ * the heap used per live session while the sessions run.
+ */
+public class SessionRunner {
+  // How often the heap is sampled while sessions are running
+  private static final long HEAP_SAMPLE_MILLIS = 10;
+
+  /**
+   * Measurements of one run.
+   */
+  public static class Report {
+    public final int sessions;
+    public final long elapsedNanos;
+    public final long baseHeapBytes;
+    public final long peakHeapBytes;
+
+    Report(int sessions, long elapsedNanos, long baseHeapBytes, long peakHeapBytes) {
+      this.sessions = sessions;
+      this.elapsedNanos = elapsedNanos;
+      this.baseHeapBytes = baseHeapBytes;
+      this.peakHeapBytes = peakHeapBytes;
+    }
+
+    public double sessionsPerSecond() {
+      return sessions / (elapsedNanos / 1e9);
+    }
+
+    public double commandsPerSecond(long commands) {
+      return commands / (elapsedNanos / 1e9);
+    }
+
+    public long bytesPerSession() {
+      return sessions == 0 ? 0 : Math.max(0, peakHeapBytes - baseHeapBytes) / sessions;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d sessions in %.1f ms (%.1f sessions/s), ~%d bytes of heap per session",
+          sessions, elapsedNanos / 1e6, sessionsPerSecond(), bytesPerSession());
+    }
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for every submitted session
+   */
+  public static ExecutorService newSessionExecutor() {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-", 0).factory());
+  }
+
+  /**
+   * Run all sessions concurrently and wait for them to finish.
+   *
+   * @param sessions sessions to run, each returning its output
+   * @param outputs  receives the output of each session in the order of {@code sessions}, or
+   *                 null for sessions that failed or did not finish within the timeout
+   * @param timeout  maximum time to wait for all sessions
+   *
+   * @return the measurements of the run
+   */
+  public static Report runAll(List<? extends Callable<String>> sessions, List<String> outputs,
+      long timeout, TimeUnit unit) throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+    AtomicLong peakHeap = new AtomicLong(baseHeap);
+
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "session-heap-sampler");
+      t.setDaemon(true);
+      return t;
+    });
+    sampler.scheduleAtFixedRate(
+        () -> peakHeap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max),
+        0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+    long start = System.nanoTime();
+    ExecutorService executor = newSessionExecutor();
+    try {
+      List<Future<String>> futures = new ArrayList<>(sessions.size());
+      for (Callable<String> session : sessions) {
+        futures.add(executor.submit(session));
+      }
+
+      long deadline = start + unit.toNanos(timeout);
+      for (Future<String> f : futures) {
+        try {
+          outputs.add(f.get(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+        } catch (ExecutionException e) {
+          e.getCause().printStackTrace();
+          outputs.add(null);
+        } catch (TimeoutException e) {
+          System.out.println("Timed out!");
+          f.cancel(true);
+          outputs.add(null);
+        }
+      }
+    } finally {
+      // Sessions that timed out have been interrupted, do not wait for them
+      executor.shutdown();
+      sampler.shutdownNow();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    return new Report(sessions.size(), elapsed, baseHeap, peakHeap.get());
+  }
+}
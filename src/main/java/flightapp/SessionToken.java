@@ -0,0 +1,125 @@
+package flightapp;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Signed, self-contained session tokens.
+ *
+ * A token carries the logged in user and the itineraries of the last search, so any FlightService
+ * process holding the same key can resume the session and book from that search without sticky
+ * routing. Tokens are signed with HMAC-SHA256 and expire after flightapp.session_ttl_seconds.
+ *
+ * The key is read from the flightapp.session_key system property as Base64. Without it a random key
+ * is generated, so tokens are then only accepted by the process that issued them.
+ */
+public class SessionToken {
+  private static final int VERSION = 1;
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final long TTL_SECONDS = Long.getLong("flightapp.session_ttl_seconds", 3600);
+  private static final byte[] KEY = loadKey();
+
+  /**
+   * Contents of a valid token
+   */
+  public static class Session {
+    public final String username;
+    public final SearchState search;
+
+    Session(String username, SearchState search) {
+      this.username = username;
+      this.search = search;
+    }
+  }
+
+  private static byte[] loadKey() {
+    String key = System.getProperty("flightapp.session_key");
+    if (key != null) {
+      return Base64.getDecoder().decode(key);
+    }
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    return random;
+  }
+
+  /**
+   * Issue a token for the user and the last search, which may be null
+   */
+  public static String issue(String username, SearchState search) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(VERSION);
+      out.writeLong(System.currentTimeMillis() / 1000 + TTL_SECONDS);
+      out.writeUTF(username);
+      int count = search == null ? 0 : search.count();
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        out.writeInt(search.fid1(i));
+        out.writeInt(search.fid2(i));
+        out.writeByte(search.dayOfMonth(i));
+      }
+    } catch (IOException e) {
+      // ByteArrayOutputStream never throws
+      throw new UncheckedIOException(e);
+    }
+    byte[] payload = bytes.toByteArray();
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+  }
+
+  /**
+   * Check the signature and expiry of a token and decode it
+   *
+   * @return the session, or null if the token is malformed, forged or expired
+   */
+  public static Session verify(String token) {
+    int dot = token.indexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    byte[] payload;
+    byte[] signature;
+    try {
+      Base64.Decoder decoder = Base64.getUrlDecoder();
+      payload = decoder.decode(token.substring(0, dot));
+      signature = decoder.decode(token.substring(dot + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!MessageDigest.isEqual(sign(payload), signature)) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      if (in.readByte() != VERSION || in.readLong() < System.currentTimeMillis() / 1000) {
+        return null;
+      }
+      String username = in.readUTF();
+      int count = in.readInt();
+      SearchState search = null;
+      if (count > 0) {
+        search = new SearchState();
+        for (int i = 0; i < count; i++) {
+          search.add(in.readInt(), in.readInt(), in.readByte());
+        }
+        search.trim();
+      }
+      return new Session(username, search);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static byte[] sign(byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(KEY, ALGORITHM));
+      return mac.doFinal(payload);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Top-k search for two-leg itineraries over the per-city flight lists of a {@link FlightStore}.
+ *
+ * Instead of joining every flight into a hub with every flight out of it, the first legs are
+ * grouped by hub from the origin's outbound list and the second legs by hub from the
+ * destination's inbound list, both already sorted by the cost of the rank. The pairs are then
+ * produced in order of total cost by a merge over the second legs of every first leg, so a query
+ * costs the size of the two lists plus about k heap operations whatever the rank.
+ *
+ * When ranking by time, the second legs that keep the itinerary inside the time window are a
+ * contiguous range found by binary search. Other ranks skip second legs outside the window.
+ */
+public class TwoLegSearch {
+
+  /**
+   * Pairs of one hub: first legs into the hub and second legs out of it, both sorted by cost
+   */
+  private static class Hub {
+    final List<Integer> first = new ArrayList<>();
+    final List<Integer> second = new ArrayList<>();
+  }
+
+  /**
+   * The next candidate pair of one first leg
+   */
+  private static class Candidate {
+    final Hub hub;
+    final int first;
+    final int end;
+    int second;
+    int cost;
+
+    Candidate(Hub hub, int first, int second, int end) {
+      this.hub = hub;
+      this.first = first;
+      this.second = second;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Return the k cheapest two-leg itineraries under the ranking whose total time is within
+   * [minTime, maxTime], ordered by total cost, then fid of the first and of the second flight.
+   *
+   * @return the two flights of every itinerary as indexes into the arrays of the day
+   */
+  public static List<int[]> search(FlightStore.Day day, FlightStore.Ranking ranking, int origin,
+      int dest, int minTime, int maxTime, int k) {
+    List<int[]> itineraries = new ArrayList<>();
+    if (origin < 0 || dest < 0 || origin == dest || k <= 0) {
+      return itineraries;
+    }
+
+    // Group both lists by hub, keeping them sorted by cost and fid
+    Map<Integer, Hub> hubs = new HashMap<>();
+    for (int i = day.outStart(origin); i < day.outEnd(origin); i++) {
+      int flight = ranking.outbound(i);
+      if (day.dest[flight] != dest) {
+        hubs.computeIfAbsent(day.dest[flight], h -> new Hub()).first.add(flight);
+      }
+    }
+    for (int i = day.inStart(dest); i < day.inEnd(dest); i++) {
+      int flight = ranking.inbound(i);
+      Hub hub = hubs.get(day.origin[flight]);
+      if (hub != null) {
+        hub.second.add(flight);
+      }
+    }
+
+    boolean byTime = ranking.rank == SearchOptions.Rank.TIME;
+    // Every first leg has one candidate, so ties are broken by the first fid alone
+    PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> a.cost != b.cost
+        ? Integer.compare(a.cost, b.cost) : Integer.compare(day.fid[a.first], day.fid[b.first]));
+    for (Hub hub : hubs.values()) {
+      if (hub.second.isEmpty()) {
+        continue;
+      }
+      for (int first : hub.first) {
+        // Second legs with a time in [minTime - t1, maxTime - t1]
+        int t1 = day.time[first];
+        int start = byTime ? lowerBound(day, hub.second, (long) minTime - t1) : 0;
+        int end = byTime ? lowerBound(day, hub.second, (long) maxTime - t1 + 1) : hub.second.size();
+        Candidate candidate = new Candidate(hub, first, start, end);
+        if (advance(day, ranking, candidate, minTime, maxTime)) {
+          queue.add(candidate);
+        }
+      }
+    }
+
+    while (itineraries.size() < k && !queue.isEmpty()) {
+      Candidate candidate = queue.poll();
+      itineraries.add(new int[] { candidate.first, candidate.hub.second.get(candidate.second) });
+      candidate.second++;
+      if (advance(day, ranking, candidate, minTime, maxTime)) {
+        queue.add(candidate);
+      }
+    }
+    return itineraries;
+  }
+
+  // Move the candidate to its next second leg inside the time window and compute its cost
+  private static boolean advance(FlightStore.Day day, FlightStore.Ranking ranking,
+      Candidate candidate, int minTime, int maxTime) {
+    int t1 = day.time[candidate.first];
+    while (candidate.second < candidate.end) {
+      int second = candidate.hub.second.get(candidate.second);
+      long time = (long) t1 + day.time[second];
+      if (time >= minTime && time <= maxTime) {
+        candidate.cost = ranking.cost[candidate.first] + ranking.cost[second];
+        return true;
+      }
+      candidate.second++;
+    }
+    return false;
+  }
+
+  // First position in the time-sorted flights whose time is at least the given one
+  private static int lowerBound(FlightStore.Day day, List<Integer> flights, long time) {
+    int low = 0;
+    int high = flights.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (day.time[flights.get(mid)] < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,117 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Books waitlisted itineraries once their seats are freed.
+ *
+ * Cancels and expired holds only signal the promoter, which books for the queued users on its own
+ * session in the background, so canceling stays as fast as before. Signals arriving while a run is
+ * pending are folded into that run, and every run reads the waitlist in batches. A periodic run
+ * also picks up seats freed by other processes. A process runs at most one promoter per database.
+ */
+public class WaitlistPromoter implements AutoCloseable {
+  private static final int DEFAULT_INTERVAL_SECONDS = 10;
+  private static final int DEFAULT_BATCH_SIZE = 100;
+
+  // Promoters of this process by database, see Query#database, signaled when seats are freed
+  private static final ConcurrentMap<String, WaitlistPromoter> promoters = new ConcurrentHashMap<>();
+
+  private final Query q;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean pending = new AtomicBoolean();
+
+  private WaitlistPromoter(Query q, int batchSize) {
+    this.q = q;
+    this.batchSize = batchSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-waitlist-promoter");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Promote on a dedicated session every intervalSeconds and whenever seats are freed in the
+   * database of the session, as the promoter of that database
+   *
+   * @param q session used only by the promoter
+   */
+  public static WaitlistPromoter start(Query q, int intervalSeconds, int batchSize) {
+    WaitlistPromoter promoter = new WaitlistPromoter(q, batchSize);
+    promoter.scheduler.scheduleWithFixedDelay(promoter::promote, intervalSeconds, intervalSeconds,
+        TimeUnit.SECONDS);
+    promoters.put(q.database(), promoter);
+    return promoter;
+  }
+
+  /**
+   * Start the promoter of the database of dbconn.properties. The interval and batch size are read from
+   * flightapp.waitlist_promote_seconds and flightapp.waitlist_promote_batch.
+   */
+  public static WaitlistPromoter start() throws SQLException, IOException {
+    int interval = Integer.getInteger("flightapp.waitlist_promote_seconds", DEFAULT_INTERVAL_SECONDS);
+    int batch = Integer.getInteger("flightapp.waitlist_promote_batch", DEFAULT_BATCH_SIZE);
+    return start(new Query(), interval, batch);
+  }
+
+  /**
+   * Schedule a run of the promoter of the database, if there is one and no run is pending yet
+   *
+   * @param database key of the database, see Query#database
+   */
+  public static void seatsFreed(String database) {
+    WaitlistPromoter promoter = promoters.get(database);
+    if (promoter != null && promoter.pending.compareAndSet(false, true)) {
+      try {
+        promoter.scheduler.execute(promoter::promote);
+      } catch (RejectedExecutionException e) {
+        // Closed
+      }
+    }
+  }
+
+  /**
+   * Wait until the runs already scheduled on the promoter of the database are done, if there is
+   * one, e.g. for a test to see what the seats freed by a command promoted
+   *
+   * @param database key of the database, see Query#database
+   */
+  static void awaitRuns(String database) throws InterruptedException {
+    WaitlistPromoter promoter = promoters.get(database);
+    if (promoter != null) {
+      try {
+        promoter.scheduler.submit(() -> {}).get();
+      } catch (ExecutionException | RejectedExecutionException e) {
+        // Closed
+      }
+    }
+  }
+
+  /**
+   * Book every waitlisted itinerary that fits in the free seats
+   *
+   * @return the number of itineraries booked
+   */
+  public int promote() {
+    pending.set(false);
+    try {
+      return q.promoteWaitlist(batchSize);
+    } catch (SQLException e) {
+      // Try again on the next run
+      e.printStackTrace();
+      return 0;
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    promoters.remove(q.database(), this);
+    scheduler.shutdownNow();
+    q.closeConnection();
+  }
+}
@@ -15,22 +15,42 @@ import java.sql.*;
 import static org.junit.Assert.assertTrue;
 
 /**
- * Autograder for the transaction assignment
+ * Autograder for the transaction assignment.
+ *
+ * Every case runs alone on a database of its own, which is reset before the case. By default there
+ * is one database, the one of the credential, and cases run one after the other. Listing more
+ * databases on the same server in the test.databases property runs that many cases at a time, up
+ * to test.threads or the number of cores:
+ *
+ * <pre>
+ * mvn test -Dtest.databases=flights_test1,flights_test2,flights_test3,flights_test4
+ * </pre>
+ *
+ * Each database must hold the Flights data; the tables of createTables.sql are recreated in all of
+ * them. With test.databases, shards and read replicas are configured by system properties only,
+ * and cases run one at a time if flightapp.shard_databases is set since the shards are shared.
+ *
+ * State the sessions of the process share is kept per database where it depends on the data: the
+ * cached flights of {@link FlightStore}, the seeded seat slots and the {@link WaitlistPromoter}.
+ * Metrics and the idle search state registry only observe the sessions and do not change what a
+ * command returns. Admission control does, by rejecting commands under load, so cases run one at a
+ * time if flightapp.admission is set.
+ *
+ * Every case runs with a {@link WaitlistPromoter} of its database, and a user's next command waits
+ * for the promotions its last command signaled, so a case sees a cancel promote the waitlist.
  */
-@RunWith(Parameterized.class)
+@RunWith(ParallelParameterized.class)
 public class FlightServiceTest {
-  /**
-   * Maximum number of concurrent users we will be testing
-   */
-  private static final int MAX_USERS = 5;
   /**
    * Max time in seconds to wait for a response for a user
    */
   private static final int RESPONSE_TIME = 60;
+
   /**
-   * Thread pool used to run different users
+   * Seconds between the periodic runs of the promoter of a case, which otherwise runs whenever
+   * seats are freed
    */
-  private static ExecutorService pool;
+  private static final int PROMOTE_INTERVAL = 3600;
 
   /**
    * Denotes a comment
@@ -44,12 +64,27 @@ public class FlightServiceTest {
    * Denotes alternate result
    */
   static final String SEPARATOR = "|";
+  /**
+   * Stands for the session token issued first by a user of the case, in commands and results, since
+   * a token differs on every run. A command using it waits until the token is issued.
+   */
+  static final String SESSION_TOKEN = "[token]";
+  /**
+   * Command taken by the test rather than sent to the service, pausing the user for the given
+   * number of seconds, e.g. to let a hold expire
+   */
+  static final String PAUSE = "pause ";
 
   private static String serverURL = null;
   private static String dbName = null;
   private static String adminName = null;
   private static String password = null;
 
+  /**
+   * Credentials of the databases not used by a running case
+   */
+  private static final BlockingQueue<String[]> databases = new LinkedBlockingQueue<>();
+
   public static void initCredential() {
     String credentialServerPort = System.getProperty("credentialServer");
     if (credentialServerPort != null) {
@@ -79,6 +114,39 @@ public class FlightServiceTest {
     }
   }
 
+  /**
+   * Get the credential read by {@link #initCredential()} as {serverURL, dbName, adminName,
+   * password}. All are null when dbconn.properties should be used.
+   */
+  static String[] credential() {
+    return new String[]{serverURL, dbName, adminName, password};
+  }
+
+  /**
+   * Get the databases listed in the test.databases property, empty if it is not set
+   */
+  static List<String> testDatabases() {
+    List<String> names = new ArrayList<>();
+    for (String name : System.getProperty("test.databases", "").split(",")) {
+      if (!name.isBlank()) {
+        names.add(name.trim());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Get the number of cases to run at a time
+   */
+  static int workers() {
+    if (!System.getProperty("flightapp.shard_databases", "").isBlank()
+        || Boolean.getBoolean("flightapp.admission")) {
+      return 1;
+    }
+    int threads = Integer.getInteger("test.threads", Runtime.getRuntime().availableProcessors());
+    return Math.max(1, Math.min(testDatabases().size(), threads));
+  }
+
   /**
    * Models a single user. Callable from a thread.
    */
@@ -86,11 +154,14 @@ public class FlightServiceTest {
     private Query q;
     private List<String> cmds; // commands that this user will execute
     private List<String> results; // the expected results from those commands
+    private CompletableFuture<String> token; // session token shared by the users of the case
 
-    public User(List<String> cmds, List<String> results) throws IOException, SQLException {
-      this.q = new Query(serverURL, dbName, adminName, password);
+    public User(String[] credential, List<String> cmds, List<String> results,
+        CompletableFuture<String> token) throws IOException, SQLException {
+      this.q = new Query(credential[0], credential[1], credential[2], credential[3]);
       this.cmds = cmds;
       this.results = results;
+      this.token = token;
     }
 
     public List<String> results() {
@@ -98,10 +169,23 @@ public class FlightServiceTest {
     }
 
     @Override
-    public String call() {
+    public String call() throws Exception {
       StringBuffer sb = new StringBuffer();
       for (String cmd : cmds) {
-        sb.append(FlightService.execute(q, cmd));
+        if (cmd.startsWith(PAUSE)) {
+          Thread.sleep(1000L * Integer.parseInt(cmd.substring(PAUSE.length()).trim()));
+          continue;
+        }
+        if (cmd.contains(SESSION_TOKEN)) {
+          cmd = cmd.replace(SESSION_TOKEN, token.get(RESPONSE_TIME, TimeUnit.SECONDS));
+        }
+        String response = FlightService.execute(q, cmd);
+        if (response.startsWith("Session: ")) {
+          token.complete(response.substring("Session: ".length()).trim());
+          response = "Session: " + SESSION_TOKEN + "\n";
+        }
+        sb.append(response);
+        WaitlistPromoter.awaitRuns(q.database());
       }
 
       return sb.toString();
@@ -116,13 +200,15 @@ public class FlightServiceTest {
    * Parse the input test case. Format expected is
    *
    * @param filename test case's path and file name
+   * @param credential database the users connect to, as returned by {@link #credential()}
    * @return new User objects with commands to run and expected results
    * @throws Exception
    */
-  static List<User> parse(String filename) throws IOException, SQLException {
+  static List<User> parse(String filename, String[] credential) throws IOException, SQLException {
     List<User> users = new ArrayList<>();
     List<String> cmds = new ArrayList<>();
     List<String> results = new ArrayList<>();
+    CompletableFuture<String> token = new CompletableFuture<>();
     String r = "";
     boolean isCmd = true;
     BufferedReader reader = new BufferedReader(new FileReader(filename));
@@ -142,7 +228,7 @@ public class FlightServiceTest {
         } else {
           // Result recordings finished for a user so user is fully specified
           results.add(r);
-          users.add(new User(cmds, results));
+          users.add(new User(credential, cmds, results, token));
           cmds = new ArrayList<>();
           results = new ArrayList<>();
           r = "";
@@ -196,20 +282,41 @@ public class FlightServiceTest {
   }
 
   /**
-   * Creates the thread pool to execute test cases with multiple users.
+   * Creates the tables used by the test cases in every test database. Each user runs on its own
+   * virtual thread.
    */
   @BeforeClass
   public static void setup() {
     System.out.println("running setup");
-    pool = Executors.newFixedThreadPool(MAX_USERS);
     initCredential();
     try {
-      Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
-              : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
-      TestUtils.dropTables(conn);
-      TestUtils.runCreateTables(conn);
-      TestUtils.checkTable(conn);
-      conn.close();
+      List<String> names = testDatabases();
+      if (names.isEmpty()) {
+        databases.add(credential());
+      } else {
+        // The test databases share the server and login of the credential or dbconn.properties
+        if (serverURL == null) {
+          Properties configProps = new Properties();
+          try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+            configProps.load(in);
+          }
+          serverURL = configProps.getProperty("flightapp.server_url");
+          adminName = configProps.getProperty("flightapp.username");
+          password = configProps.getProperty("flightapp.password");
+        }
+        for (String name : names) {
+          databases.add(new String[]{serverURL, name, adminName, password});
+        }
+      }
+
+      for (String[] database : databases) {
+        Connection conn = database[0] == null ? Query.openConnectionFromDbConn()
+                : Query.openConnectionFromCredential(database[0], database[1], database[2], database[3]);
+        TestUtils.dropTables(conn);
+        TestUtils.runCreateTables(conn);
+        TestUtils.checkTable(conn);
+        conn.close();
+      }
     } catch (Exception e) {
       System.err.println("Failed to drop tables and run createTables.sql");
       e.printStackTrace();
@@ -222,6 +329,16 @@ public class FlightServiceTest {
    */
   protected String file;
 
+  /**
+   * Database taken by the case until it completes
+   */
+  private String[] database;
+
+  /**
+   * Promoter of the waitlist of the database while the case runs
+   */
+  private WaitlistPromoter promoter;
+
   /**
    * Initialize a test case with a file name
    */
@@ -262,11 +379,23 @@ public class FlightServiceTest {
 
 
   @Before
-  public void clearDB() throws SQLException, IOException {
-    Query query =
-            serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+  public void clearDB() throws SQLException, IOException, InterruptedException {
+    database = databases.take();
+    Query query = new Query(database[0], database[1], database[2], database[3]);
     query.clearTables();
     query.closeConnection();
+    promoter = WaitlistPromoter.start(
+        new Query(database[0], database[1], database[2], database[3]), PROMOTE_INTERVAL, 100);
+  }
+
+  @After
+  public void releaseDB() throws SQLException {
+    if (promoter != null) {
+      promoter.close();
+    }
+    if (database != null) {
+      databases.add(database);
+    }
   }
 
   /**
@@ -277,27 +406,14 @@ public class FlightServiceTest {
     System.out.println("running test scenario: " + this.file);
 
     // Loads the scenario and initializes users
-    List<User> users = parse(this.file);
-    List<Future<String>> futures = new ArrayList<>();
-    for (User user : users) {
-      futures.add(pool.submit(user));
-    }
+    List<User> users = parse(this.file, database);
 
     try {
-      // Waits for an output for each user
+      // Runs every user on its own virtual thread and waits for an output for each user
       List<String> outputs = new ArrayList<>();
-      long waitTime = RESPONSE_TIME * futures.size();
-      long endTime = System.currentTimeMillis() + waitTime * 1000;
-      for (Future<String> f : futures) {
-        try {
-          outputs.add(f.get(waitTime, TimeUnit.SECONDS));
-        } catch (TimeoutException e) {
-          System.out.println("Timed out!");
-        } finally {
-          waitTime = (endTime - System.currentTimeMillis()) / 1000;
-          waitTime = waitTime <= 0 ? 1 : waitTime;
-        }
-      }
+      SessionRunner.Report report =
+              SessionRunner.runAll(users, outputs, RESPONSE_TIME * users.size(), TimeUnit.SECONDS);
+      System.out.println(report);
 
       // For each possible outcome, check if each user matches the respective output
       // for the given outcome
@@ -307,7 +423,7 @@ public class FlightServiceTest {
       for (int i = 0; i < n; ++i) {
         boolean isSame = true;
         for (int j = 0; j < users.size(); ++j) {
-          isSame = isSame && outputs.get(j).equals(users.get(j).results().get(i));
+          isSame = isSame && users.get(j).results().get(i).equals(outputs.get(j));
           if (!outcomes.containsKey(i)) {
             outcomes.put(i, new ArrayList<String>());
           }
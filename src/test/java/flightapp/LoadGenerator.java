@@ -0,0 +1,383 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Load generator for capacity planning.
+ *
+ * Optionally fills a database with a synthetic Flights dataset, then runs a population of users,
+ * each on its own virtual thread and connection, that drive {@link FlightService#execute} with a
+ * configurable mix of commands. Route popularity follows a Zipf distribution both in the dataset
+ * and in the searches. At the end it prints throughput, latency percentiles per command and the
+ * booking conflict rate.
+ *
+ * Every user creates its account and logs in once before its share of the mix. The mix can add
+ * further "create" commands, each for a new account, and "login" commands, each closing the session
+ * and logging in again on a new one.
+ *
+ * Run against a local database, never against the shared course database when populating:
+ *
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.LoadGenerator \
+ *     -Dexec.args="--populate --flights=200000 --users=200 --ops=50 --mix=search:60,book:20,pay:10,reservations:5,cancel:5"
+ * </pre>
+ *
+ * The database is chosen like in the tests: -Dcredential=serverURL;dbName;username;password, or
+ * dbconn.properties otherwise.
+ */
+public class LoadGenerator {
+  private static final String[] COMMANDS =
+      { "create", "login", "search", "book", "pay", "reservations", "cancel" };
+
+  private static final String CREATE_FLIGHTS_SQL = "IF OBJECT_ID('Flights') IS NULL " +
+          "CREATE TABLE Flights (fid int PRIMARY KEY, month_id int, day_of_month int, " +
+          "day_of_week_id int, carrier_id varchar(7), flight_num int, origin_city varchar(34), " +
+          "origin_state varchar(47), dest_city varchar(34), dest_state varchar(46), " +
+          "departure_delay int, taxi_out int, arrival_delay int, canceled int, actual_time int, " +
+          "distance int, capacity int, price int)";
+  private static final String MAX_FID_SQL = "SELECT ISNULL(MAX(fid), 0) AS max_fid FROM Flights";
+  private static final String INSERT_FLIGHT_SQL = "INSERT INTO Flights VALUES " +
+          "(?, 7, ?, ?, ?, ?, ?, 'ST', ?, 'ST', 0, 0, 0, 0, ?, ?, ?, ?)";
+  private static final int INSERT_BATCH = 1000;
+  private static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "HA", "UA", "WN" };
+
+  /**
+   * Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent.
+   */
+  static class Zipf {
+    private final double[] cdf;
+
+    Zipf(int n, double exponent) {
+      cdf = new double[n];
+      double sum = 0;
+      for (int i = 0; i < n; i++) {
+        sum += 1 / Math.pow(i + 1, exponent);
+        cdf[i] = sum;
+      }
+      for (int i = 0; i < n; i++) {
+        cdf[i] /= sum;
+      }
+    }
+
+    double weight(int rank) {
+      return rank == 0 ? cdf[0] : cdf[rank] - cdf[rank - 1];
+    }
+
+    int sample(Random random) {
+      int i = Arrays.binarySearch(cdf, random.nextDouble());
+      return Math.min(cdf.length - 1, i >= 0 ? i : -i - 1);
+    }
+  }
+
+  /**
+   * Command line options, given as --name=value
+   */
+  static class Options {
+    boolean populate;
+    boolean clear;
+    int flights = 100000;
+    int cities = 200;
+    int routes = 2000;
+    int days = 31;
+    double zipf = 1.0;
+    int users = 50;
+    int ops = 50;
+    int itineraries = 10;
+    int balance = 100000;
+    long seed = 42;
+    Map<String, Integer> mix = new LinkedHashMap<>();
+
+    Options(String[] args) {
+      mix.put("search", 60);
+      mix.put("book", 20);
+      mix.put("pay", 10);
+      mix.put("reservations", 5);
+      mix.put("cancel", 5);
+      for (String arg : args) {
+        String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+        String value = kv.length > 1 ? kv[1] : "true";
+        switch (kv[0]) {
+          case "populate": populate = Boolean.parseBoolean(value); break;
+          case "clear": clear = Boolean.parseBoolean(value); break;
+          case "flights": flights = Integer.parseInt(value); break;
+          case "cities": cities = Integer.parseInt(value); break;
+          case "routes": routes = Integer.parseInt(value); break;
+          case "days": days = Integer.parseInt(value); break;
+          case "zipf": zipf = Double.parseDouble(value); break;
+          case "users": users = Integer.parseInt(value); break;
+          case "ops": ops = Integer.parseInt(value); break;
+          case "itineraries": itineraries = Integer.parseInt(value); break;
+          case "balance": balance = Integer.parseInt(value); break;
+          case "seed": seed = Long.parseLong(value); break;
+          case "mix":
+            mix.clear();
+            for (String part : value.split(",")) {
+              String[] cw = part.split(":");
+              mix.put(cw[0], Integer.parseInt(cw[1]));
+            }
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      // Routes join two different cities
+      if (cities < 2) {
+        throw new IllegalArgumentException("--cities must be at least 2");
+      }
+      for (String command : mix.keySet()) {
+        if (!Arrays.asList(COMMANDS).contains(command)) {
+          throw new IllegalArgumentException("Unknown command in --mix: " + command);
+        }
+      }
+    }
+  }
+
+  private final Options options;
+  private final String[] routeOrigins;
+  private final String[] routeDestinations;
+  private final Zipf routePopularity;
+
+  // Per command latency and outcome counters of the run
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final AtomicLong bookAttempts = new AtomicLong();
+  private final AtomicLong bookConflicts = new AtomicLong();
+  private final AtomicLong sameDayRejections = new AtomicLong();
+  private final AtomicLong emptySearches = new AtomicLong();
+
+  LoadGenerator(Options options) {
+    this.options = options;
+    Random random = new Random(options.seed);
+    routeOrigins = new String[options.routes];
+    routeDestinations = new String[options.routes];
+    for (int i = 0; i < options.routes; i++) {
+      int origin = random.nextInt(options.cities);
+      int dest = (origin + 1 + random.nextInt(options.cities - 1)) % options.cities;
+      routeOrigins[i] = cityName(origin);
+      routeDestinations[i] = cityName(dest);
+    }
+    routePopularity = new Zipf(options.routes, options.zipf);
+    for (String command : COMMANDS) {
+      latencies.put(command, new LatencyHistogram());
+    }
+  }
+
+  private static String cityName(int city) {
+    return String.format("City%04d ST", city);
+  }
+
+  /**
+   * Insert the synthetic flights after the highest existing fid. Popular routes get
+   * proportionally more flights per day.
+   */
+  void populate(Connection conn) throws SQLException {
+    Random random = new Random(options.seed + 1);
+    try (Statement statement = conn.createStatement()) {
+      statement.execute(CREATE_FLIGHTS_SQL);
+    }
+    int fid;
+    try (Statement statement = conn.createStatement();
+         ResultSet rs = statement.executeQuery(MAX_FID_SQL)) {
+      rs.next();
+      fid = rs.getInt("max_fid");
+    }
+
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT_SQL)) {
+      int pending = 0;
+      for (int route = 0; route < options.routes; route++) {
+        int perRoute = Math.max(1, (int) Math.round(options.flights * routePopularity.weight(route)));
+        for (int i = 0; i < perRoute; i++) {
+          int day = 1 + random.nextInt(options.days);
+          int time = 45 + random.nextInt(600);
+          insert.setInt(1, ++fid);
+          insert.setInt(2, day);
+          insert.setInt(3, 1 + (day - 1) % 7);
+          insert.setString(4, CARRIERS[random.nextInt(CARRIERS.length)]);
+          insert.setInt(5, 1 + random.nextInt(9999));
+          insert.setString(6, routeOrigins[route]);
+          insert.setString(7, routeDestinations[route]);
+          insert.setInt(8, time);
+          insert.setInt(9, time * 8);
+          insert.setInt(10, random.nextInt(20));
+          insert.setInt(11, 50 + random.nextInt(1000));
+          insert.addBatch();
+          if (++pending == INSERT_BATCH) {
+            insert.executeBatch();
+            conn.commit();
+            pending = 0;
+          }
+        }
+      }
+      insert.executeBatch();
+      conn.commit();
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * One simulated user running its share of the command mix
+   */
+  class User implements Callable<String> {
+    private final String[] credential;
+    private Query q;
+    private final String username;
+    private final Random random;
+    private final List<Integer> reservations = new ArrayList<>();
+    private int lastItineraries;
+    private int accounts;
+
+    User(String[] credential, String username, long seed) throws IOException, SQLException {
+      this.credential = credential;
+      this.q = new Query(credential[0], credential[1], credential[2], credential[3]);
+      this.username = username;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public String call() {
+      FlightService.execute(q, "create " + username + " " + username + " " + options.balance);
+      FlightService.execute(q, "login " + username + " " + username);
+      int total = options.mix.values().stream().mapToInt(Integer::intValue).sum();
+      for (int i = 0; i < options.ops; i++) {
+        int pick = random.nextInt(total);
+        for (Map.Entry<String, Integer> e : options.mix.entrySet()) {
+          pick -= e.getValue();
+          if (pick < 0) {
+            run(e.getKey());
+            break;
+          }
+        }
+      }
+      return "";
+    }
+
+    private void run(String command) {
+      String line;
+      switch (command) {
+        case "search": {
+          int route = routePopularity.sample(random);
+          line = "search \"" + routeOrigins[route] + "\" \"" + routeDestinations[route] + "\" "
+              + (random.nextBoolean() ? 1 : 0) + " " + (1 + random.nextInt(options.days)) + " "
+              + options.itineraries;
+          break;
+        }
+        case "book":
+          line = "book " + (lastItineraries == 0 ? 0 : random.nextInt(lastItineraries));
+          break;
+        case "pay":
+        case "cancel":
+          line = command + " " + (reservations.isEmpty() ? 0
+              : reservations.get(random.nextInt(reservations.size())));
+          break;
+        case "create":
+          line = "create " + username + "_" + (++accounts) + " " + username + " " + options.balance;
+          break;
+        case "login":
+          line = "login " + username + " " + username;
+          break;
+        default:
+          line = command;
+      }
+
+      long start = System.nanoTime();
+      if (command.equals("login")) {
+        // A returning user, on a new session without the last search
+        try {
+          q.closeConnection();
+          q = new Query(credential[0], credential[1], credential[2], credential[3]);
+        } catch (IOException | SQLException e) {
+          throw new IllegalStateException(e);
+        }
+        lastItineraries = 0;
+      }
+      String response = FlightService.execute(q, line);
+      latencies.get(command).recordNanos(System.nanoTime() - start);
+
+      if (command.equals("search")) {
+        lastItineraries = countItineraries(response);
+        if (lastItineraries == 0) {
+          emptySearches.incrementAndGet();
+        }
+      } else if (command.equals("book") && lastItineraries > 0) {
+        bookAttempts.incrementAndGet();
+        if (response.startsWith("Booked")) {
+          reservations.add(Integer.parseInt(response.replaceAll("\\D+", "")));
+        } else if (response.startsWith("You cannot book")) {
+          sameDayRejections.incrementAndGet();
+        } else if (response.startsWith("Booking failed")) {
+          bookConflicts.incrementAndGet();
+        }
+      } else if (command.equals("cancel") && response.startsWith("Canceled")) {
+        reservations.remove(Integer.valueOf(line.substring("cancel ".length())));
+      }
+    }
+
+    private int countItineraries(String response) {
+      int count = 0;
+      for (int i = response.indexOf("Itinerary "); i >= 0; i = response.indexOf("Itinerary ", i + 1)) {
+        count++;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Run all users to completion and print the report
+   */
+  void run(String serverURL, String dbName, String adminName, String password, PrintStream out)
+      throws Exception {
+    String prefix = "lg" + Long.toString(System.currentTimeMillis(), 36);
+    List<User> users = new ArrayList<>();
+    String[] credential = { serverURL, dbName, adminName, password };
+    for (int i = 0; i < options.users; i++) {
+      users.add(new User(credential, prefix + "_" + i, options.seed + i));
+    }
+
+    List<String> outputs = new ArrayList<>();
+    SessionRunner.Report report = SessionRunner.runAll(users, outputs, 1, TimeUnit.DAYS);
+    for (User user : users) {
+      user.q.closeConnection();
+    }
+
+    long commands = (long) options.users * options.ops;
+    out.println(report);
+    out.printf("%d commands, %.1f commands/s%n", commands, report.commandsPerSecond(commands));
+    for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+      if (e.getValue().getCount() > 0) {
+        out.printf("  %-13s %s%n", e.getKey(), e.getValue());
+      }
+    }
+    long attempts = bookAttempts.get();
+    out.printf("book attempts=%d conflicts=%d (%.2f%%) same-day rejections=%d%n", attempts,
+        bookConflicts.get(), attempts == 0 ? 0 : 100.0 * bookConflicts.get() / attempts,
+        sameDayRejections.get());
+    out.printf("empty searches=%d%n", emptySearches.get());
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    FlightServiceTest.initCredential();
+    String[] credential = FlightServiceTest.credential();
+
+    LoadGenerator generator = new LoadGenerator(options);
+    if (options.populate) {
+      System.out.println("Populating " + options.flights + " synthetic flights...");
+      try (Connection conn = credential[0] == null ? Query.openConnectionFromDbConn()
+              : Query.openConnectionFromCredential(credential[0], credential[1], credential[2], credential[3])) {
+        generator.populate(conn);
+      }
+    }
+    if (options.clear) {
+      Query q = new Query(credential[0], credential[1], credential[2], credential[3]);
+      q.clearTables();
+      q.closeConnection();
+    }
+    generator.run(credential[0], credential[1], credential[2], credential[3], System.out);
+    System.exit(0);
+  }
+}
@@ -0,0 +1,36 @@
+package flightapp;
+
+import java.util.concurrent.*;
+import org.junit.runners.Parameterized;
+import org.junit.runners.model.RunnerScheduler;
+
+/**
+ * {@link Parameterized} runner that runs the tests of different parameters on a pool of
+ * {@link FlightServiceTest#workers()} threads instead of one after the other. Final, since the
+ * constructor hands the scheduler to the superclass.
+ */
+public final class ParallelParameterized extends Parameterized {
+
+  public ParallelParameterized(Class<?> klass) throws Throwable {
+    super(klass);
+    setScheduler(new RunnerScheduler() {
+      private final ExecutorService executor =
+          Executors.newFixedThreadPool(FlightServiceTest.workers());
+
+      @Override
+      public void schedule(Runnable childStatement) {
+        executor.execute(childStatement);
+      }
+
+      @Override
+      public void finished() {
+        executor.shutdown();
+        try {
+          executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+}
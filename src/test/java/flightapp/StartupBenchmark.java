@@ -0,0 +1,54 @@
+package flightapp;
+
+/**
+ * Session startup benchmark.
+ *
+ * Opens sessions one after the other and measures the time from constructing the {@link Query} to
+ * the response of its first command, then closes the session. With --eager every statement is
+ * prepared when the session opens, as sessions did before preparation became lazy, so the two
+ * runs compare time-to-first-command before and after:
+ *
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.StartupBenchmark \
+ *     -Dexec.args="--sessions=200 --eager"
+ * mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.StartupBenchmark \
+ *     -Dexec.args="--sessions=200"
+ * </pre>
+ *
+ * Add -Dflightapp.connection_pool=1 to reuse the physical connection, and the statements prepared
+ * on it, across sessions. The database is chosen like in the tests.
+ */
+public class StartupBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int sessions = 100;
+    boolean eager = false;
+    String command = "search \"Seattle WA\" \"Boston MA\" 1 1 5";
+    for (String arg : args) {
+      String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+      switch (kv[0]) {
+        case "sessions": sessions = Integer.parseInt(kv[1]); break;
+        case "eager": eager = kv.length == 1 || Boolean.parseBoolean(kv[1]); break;
+        case "command": command = kv[1]; break;
+        default: throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    FlightServiceTest.initCredential();
+    String[] credential = FlightServiceTest.credential();
+    LatencyHistogram firstCommand = new LatencyHistogram();
+    for (int i = 0; i < sessions; i++) {
+      long start = System.nanoTime();
+      Query q = new Query(credential[0], credential[1], credential[2], credential[3]);
+      if (eager) {
+        q.prepareStatements();
+      }
+      FlightService.execute(q, command);
+      firstCommand.recordNanos(System.nanoTime() - start);
+      q.closeConnection();
+    }
+
+    System.out.printf("%d sessions, %s preparation, pool of %d: time to first command %s%n",
+        sessions, eager ? "eager" : "lazy", ConnectionPool.MAX_IDLE, firstCommand);
+  }
+}
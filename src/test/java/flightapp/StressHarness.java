@@ -0,0 +1,281 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Long-running concurrency stress harness.
+ *
+ * Many sessions repeatedly search, book, pay and cancel on the same small set of flights for a
+ * fixed duration, so every booking races with others. While they run the harness prints the
+ * sustained throughput, and at the end it checks invariants against the database:
+ *
+ * <ul>
+ * <li>no flight holds more active reservations than its capacity, over all shards</li>
+ * <li>every user's balance plus the price of their paid, active reservations equals the initial
+ * balance, i.e. pay and cancel conserve money</li>
+ * <li>reservation IDs are unique, both across the shards and across all "Booked" responses</li>
+ * <li>where seats are counted in FlightSeats, the free seats of every flight plus its reservations
+ * on all shards make up its capacity, and no seat claim or release is left unsettled</li>
+ * </ul>
+ *
+ * The process exits with status 1 if an invariant is violated. Run with e.g.
+ *
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.StressHarness \
+ *     -Dexec.args="--sessions=200 --seconds=300"
+ * </pre>
+ *
+ * The database is chosen like in the tests and is cleared before the run.
+ */
+public class StressHarness {
+  private static final int INITIAL_BALANCE = 1000000;
+  private static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  // Reservations per flight on one shard. Holds that expired but were not swept yet no longer take a
+  // seat in the capacity checks, but keep theirs in the seat counters until they are canceled.
+  private static final String BOOKED_SQL = "SELECT fid, SUM(live) AS live, COUNT(*) AS held " +
+          "FROM (SELECT fid1 AS fid, CASE WHEN hold_expires IS NULL OR hold_expires > SYSUTCDATETIME() " +
+          "THEN 1 ELSE 0 END AS live FROM Reservations WHERE canceled = 0 " +
+          "UNION ALL SELECT fid2, CASE WHEN hold_expires IS NULL OR hold_expires > SYSUTCDATETIME() " +
+          "THEN 1 ELSE 0 END FROM Reservations WHERE canceled = 0 AND fid2 IS NOT NULL) AS r " +
+          "GROUP BY fid";
+  private static final String CAPACITY_SQL = "SELECT capacity FROM Flights WHERE fid = ?";
+  private static final String FREE_SEATS_SQL = "SELECT fid, SUM(free) AS free FROM FlightSeats " +
+          "GROUP BY fid";
+  private static final String SEAT_CLAIMS_SQL = "SELECT COUNT(*) AS count FROM SeatClaims";
+  private static final String SEAT_RELEASES_SQL = "SELECT COUNT(*) AS count FROM SeatReleases";
+  private static final String BALANCE_DRIFT_SQL = "SELECT u.username, " +
+          "u.balance + ISNULL(SUM(r.price), 0) AS total " +
+          "FROM Users AS u LEFT JOIN Reservations AS r " +
+          "ON r.username = u.username AND r.paid = 1 AND r.canceled = 0 " +
+          "GROUP BY u.username, u.balance HAVING u.balance + ISNULL(SUM(r.price), 0) <> ?";
+  private static final String RESERVATION_IDS_SQL = "SELECT id FROM Reservations";
+
+  private final int sessions;
+  private final long durationMillis;
+  private final String searchCommand;
+
+  private final AtomicLong commands = new AtomicLong();
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final Set<Integer> bookedIds = ConcurrentHashMap.newKeySet();
+  private final AtomicLong duplicateBookedIds = new AtomicLong();
+
+  StressHarness(int sessions, long durationMillis, String searchCommand) {
+    this.sessions = sessions;
+    this.durationMillis = durationMillis;
+    this.searchCommand = searchCommand;
+  }
+
+  /**
+   * One session hammering the shared flights until the deadline
+   */
+  class Session implements Callable<String> {
+    private final Query q;
+    private final String username;
+    private final Random random;
+    private final long deadline;
+    private final List<Integer> reservations = new ArrayList<>();
+
+    Session(Query q, String username, long seed, long deadline) {
+      this.q = q;
+      this.username = username;
+      this.random = new Random(seed);
+      this.deadline = deadline;
+    }
+
+    @Override
+    public String call() {
+      execute("create " + username + " " + username + " " + INITIAL_BALANCE);
+      execute("login " + username + " " + username);
+      while (System.currentTimeMillis() < deadline) {
+        String searched = execute(searchCommand);
+        int itineraries = searched.split("Itinerary ", -1).length - 1;
+        if (itineraries == 0) {
+          continue;
+        }
+        String booked = execute("book " + random.nextInt(itineraries));
+        if (booked.startsWith("Booked")) {
+          int id = Integer.parseInt(booked.replaceAll("\\D+", ""));
+          if (!bookedIds.add(id)) {
+            duplicateBookedIds.incrementAndGet();
+          }
+          reservations.add(id);
+        }
+        if (!reservations.isEmpty() && random.nextBoolean()) {
+          execute("pay " + reservations.get(random.nextInt(reservations.size())));
+        }
+        if (!reservations.isEmpty() && random.nextInt(3) == 0) {
+          Integer id = reservations.remove(random.nextInt(reservations.size()));
+          execute("cancel " + id);
+        }
+        execute("reservations");
+      }
+      return "";
+    }
+
+    private String execute(String command) {
+      long start = System.nanoTime();
+      String response = FlightService.execute(q, command);
+      latency.recordNanos(System.nanoTime() - start);
+      commands.incrementAndGet();
+      return response;
+    }
+  }
+
+  /**
+   * Run the sessions while printing throughput, then return the list of violated invariants
+   */
+  List<String> run(String[] credential) throws Exception {
+    Query admin = new Query(credential[0], credential[1], credential[2], credential[3]);
+    admin.clearTables();
+
+    long deadline = System.currentTimeMillis() + durationMillis;
+    List<Session> all = new ArrayList<>();
+    for (int i = 0; i < sessions; i++) {
+      Query q = new Query(credential[0], credential[1], credential[2], credential[3]);
+      all.add(new Session(q, "stress" + i, i, deadline));
+    }
+
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    long[] last = { 0, System.nanoTime() };
+    reporter.scheduleAtFixedRate(() -> {
+      long now = System.nanoTime();
+      long count = commands.get();
+      System.out.printf("%.1f commands/s, %s%n", (count - last[0]) / ((now - last[1]) / 1e9), latency);
+      last[0] = count;
+      last[1] = now;
+    }, REPORT_INTERVAL_MILLIS, REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+    SessionRunner.Report report;
+    try {
+      report = SessionRunner.runAll(all, new ArrayList<>(), durationMillis * 2, TimeUnit.MILLISECONDS);
+    } finally {
+      reporter.shutdownNow();
+    }
+    for (Session session : all) {
+      session.q.closeConnection();
+    }
+    System.out.println(report);
+    System.out.printf("%d commands, sustained %.1f commands/s, %s%n", commands.get(),
+        report.commandsPerSecond(commands.get()), latency);
+
+    List<String> violations = checkInvariants(admin.getShardConnections());
+    admin.closeConnection();
+    return violations;
+  }
+
+  /**
+   * Check the invariants over all shards, the first of which holds Flights and the seat counters
+   */
+  private List<String> checkInvariants(Connection[] shards) throws SQLException {
+    List<String> violations = new ArrayList<>();
+    Map<Integer, Integer> live = new TreeMap<>();
+    Map<Integer, Integer> held = new TreeMap<>();
+    Map<Integer, Integer> copies = new TreeMap<>();
+    for (Connection conn : shards) {
+      try (PreparedStatement statement = conn.prepareStatement(BOOKED_SQL);
+           ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          live.merge(rs.getInt("fid"), rs.getInt("live"), Integer::sum);
+          held.merge(rs.getInt("fid"), rs.getInt("held"), Integer::sum);
+        }
+      }
+      try (PreparedStatement statement = conn.prepareStatement(BALANCE_DRIFT_SQL)) {
+        statement.setInt(1, INITIAL_BALANCE);
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            violations.add(String.format("user %s holds %d instead of %d", rs.getString("username"),
+                rs.getInt("total"), INITIAL_BALANCE));
+          }
+        }
+      }
+      try (PreparedStatement statement = conn.prepareStatement(RESERVATION_IDS_SQL);
+           ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          copies.merge(rs.getInt("id"), 1, Integer::sum);
+        }
+      }
+      try (PreparedStatement statement = conn.prepareStatement(SEAT_RELEASES_SQL);
+           ResultSet rs = statement.executeQuery()) {
+        rs.next();
+        if (rs.getInt("count") > 0) {
+          violations.add(rs.getInt("count") + " canceled reservations did not give back their seat");
+        }
+      }
+    }
+
+    try (PreparedStatement statement = shards[0].prepareStatement(CAPACITY_SQL)) {
+      for (Map.Entry<Integer, Integer> flight : live.entrySet()) {
+        statement.setInt(1, flight.getKey());
+        try (ResultSet rs = statement.executeQuery()) {
+          rs.next();
+          if (flight.getValue() > rs.getInt("capacity")) {
+            violations.add(String.format("flight %d has %d active reservations but capacity %d",
+                flight.getKey(), flight.getValue(), rs.getInt("capacity")));
+          }
+        }
+      }
+      try (PreparedStatement freeStatement = shards[0].prepareStatement(FREE_SEATS_SQL);
+           ResultSet rs = freeStatement.executeQuery()) {
+        while (rs.next()) {
+          int fid = rs.getInt("fid");
+          statement.setInt(1, fid);
+          try (ResultSet capacity = statement.executeQuery()) {
+            capacity.next();
+            int seats = rs.getInt("free") + held.getOrDefault(fid, 0);
+            if (seats != capacity.getInt("capacity")) {
+              violations.add(String.format("flight %d has %d free and %d held seats but capacity %d",
+                  fid, rs.getInt("free"), held.getOrDefault(fid, 0), capacity.getInt("capacity")));
+            }
+          }
+        }
+      }
+    }
+    try (PreparedStatement statement = shards[0].prepareStatement(SEAT_CLAIMS_SQL);
+         ResultSet rs = statement.executeQuery()) {
+      rs.next();
+      if (rs.getInt("count") > 0) {
+        violations.add(rs.getInt("count") + " seat claims were left unsettled");
+      }
+    }
+
+    for (Map.Entry<Integer, Integer> id : copies.entrySet()) {
+      if (id.getValue() > 1) {
+        violations.add(String.format("reservation ID %d is stored %d times", id.getKey(),
+            id.getValue()));
+      }
+    }
+    if (duplicateBookedIds.get() > 0) {
+      violations.add(duplicateBookedIds.get() + " booking responses reused a reservation ID");
+    }
+    return violations;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int sessions = 100;
+    long seconds = 60;
+    String search = "search \"Seattle WA\" \"Boston MA\" 1 1 5";
+    for (String arg : args) {
+      String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+      switch (kv[0]) {
+        case "sessions": sessions = Integer.parseInt(kv[1]); break;
+        case "seconds": seconds = Long.parseLong(kv[1]); break;
+        case "search": search = kv[1]; break;
+        default: throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    FlightServiceTest.initCredential();
+    StressHarness harness = new StressHarness(sessions, seconds * 1000, search);
+    List<String> violations = harness.run(FlightServiceTest.credential());
+    if (violations.isEmpty()) {
+      System.out.println("All invariants hold");
+      System.exit(0);
+    }
+    violations.forEach(v -> System.out.println("VIOLATION: " + v));
+    System.exit(1);
+  }
+}